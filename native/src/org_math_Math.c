@@ -1,5 +1,17 @@
 #include "org_romantics_jni_Main.h"
 
+#ifdef JNI_STATIC_LIB
+#ifndef JNI_VERSION_1_8
+#define JNI_VERSION_1_8 0x00010008
+#endif
+
+/* Marks the library as built into the executable (JNI 1.8 static libraries), see make native-static */
+JNIEXPORT jint JNICALL JNI_OnLoad_math(JavaVM * vm, void * reserved)
+  {
+    return JNI_VERSION_1_8;
+  }
+#endif
+
 JNIEXPORT jint JNICALL Java_org_romantics_jni_Main_add
   (JNIEnv * env, jclass c, jint i, jint j)
   {
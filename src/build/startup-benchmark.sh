@@ -0,0 +1,42 @@
+#!/usr/bin/env bash
+# Compares the startup of org.romantics.jni.Main with and without a class data archive, starting
+# a fresh JVM for every run. Invoked by the cds profiles of pom.xml.
+#
+# Main calls into the native library, so the jar must bundle it for the host, e.g. after
+# "make native"; the script stops with Main's output otherwise.
+#
+# usage: startup-benchmark.sh <java> <classpath> <runs> <archive option>
+set -euo pipefail
+
+java=$1
+classpath=$2
+runs=$3
+archive_option=$4
+
+# Prints the median wall time in milliseconds of $runs JVMs started with the given options
+median_startup() {
+    local times=()
+    local start
+    for ((i = 0; i < runs; i++)); do
+        start=$(date +%s%N)
+        if ! "$java" "$@" -cp "$classpath" org.romantics.jni.Main > /dev/null 2>&1; then
+            echo "org.romantics.jni.Main failed with $*" >&2
+            exit 1
+        fi
+        times+=($(( ($(date +%s%N) - start) / 1000000 )))
+    done
+    printf '%s\n' "${times[@]}" | sort -n | sed -n "$(( (runs + 1) / 2 ))p"
+}
+
+# warm up the page cache, so the first measured run is not penalized, and check Main runs at all
+if ! output=$("$java" -cp "$classpath" org.romantics.jni.Main 2>&1); then
+    echo "$output" >&2
+    echo "org.romantics.jni.Main failed: the jar must bundle the native library for this" \
+        "platform, build it with \"make native\" before \"mvn -Dcds verify\"" >&2
+    exit 1
+fi
+
+baseline=$(median_startup -Xshare:auto)
+archived=$(median_startup "$archive_option")
+echo "Startup of org.romantics.jni.Main, median of $runs runs: ${baseline} ms without archive," \
+    "${archived} ms with $archive_option ($(( baseline - archived )) ms saved)"
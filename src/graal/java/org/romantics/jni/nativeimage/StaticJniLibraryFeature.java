@@ -0,0 +1,27 @@
+package org.romantics.jni.nativeimage;
+
+import com.oracle.svm.core.jdk.NativeLibrarySupport;
+import com.oracle.svm.core.jdk.PlatformNativeLibrarySupport;
+import com.oracle.svm.hosted.FeatureImpl;
+import com.oracle.svm.hosted.c.NativeLibraries;
+import org.graalvm.nativeimage.hosted.Feature;
+
+/**
+ * Links libmath.a, built by make native-static, into the native image as a built-in JNI library.
+ * The image is built with -Dmath.lib.builtin=true, so NativeLibLoader loads it through
+ * System.loadLibrary without looking for or extracting a shared library. Only compiled by the
+ * native-image-static Maven profile, as it relies on GraalVM builder internals.
+ */
+public final class StaticJniLibraryFeature implements Feature {
+    private static final String LIBRARY_NAME = "math";
+    private static final String JNI_PACKAGE_PREFIX = "org_romantics_jni";
+
+    @Override
+    public void beforeAnalysis(BeforeAnalysisAccess access) {
+        NativeLibrarySupport.singleton().preregisterUninitializedBuiltinLibrary(LIBRARY_NAME);
+        PlatformNativeLibrarySupport.singleton().addBuiltinPkgNativePrefix(JNI_PACKAGE_PREFIX);
+        NativeLibraries nativeLibraries =
+                ((FeatureImpl.BeforeAnalysisAccessImpl) access).getNativeLibraries();
+        nativeLibraries.addStaticJniLibrary(LIBRARY_NAME);
+    }
+}
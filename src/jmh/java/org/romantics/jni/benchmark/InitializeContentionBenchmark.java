@@ -0,0 +1,102 @@
+package org.romantics.jni.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.romantics.jni.util.NativeLibLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link NativeLibLoader#initialize(String)} once the library is loaded, as every
+ * class declaring native methods calls it, from 1 to 64 threads.
+ *
+ * <p>The static synchronized method it replaced is gone from the tree, so {@link #baseline()} is a
+ * copy of all it ran for a loaded library: the class-wide lock around three reads of a map of
+ * flags. Loading the library is not measured by either. Only compiled by the jmh Maven profile,
+ * which needs the library built for the host: mvn -Pjmh verify
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InitializeContentionBenchmark {
+    private static final String LIBRARY_NAME = "math";
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    /** The flags of the replaced method, one per library. */
+    private static final Map<String, Boolean> extracted = new ConcurrentHashMap<>();
+
+    @Setup
+    public void load() throws Exception {
+        if (!NativeLibLoader.initialize(LIBRARY_NAME)) {
+            throw new IllegalStateException("Native library " + LIBRARY_NAME + " not loaded");
+        }
+        extracted.put(LIBRARY_NAME, true);
+    }
+
+    @Benchmark
+    public boolean initialize() throws Exception {
+        return NativeLibLoader.initialize(LIBRARY_NAME);
+    }
+
+    @Benchmark
+    public boolean baseline() throws Exception {
+        return initializeSynchronized(LIBRARY_NAME);
+    }
+
+    /** The replaced NativeLibLoader.initialize(String), as it ran once the library was loaded. */
+    private static synchronized boolean initializeSynchronized(String nativeLibBaseName)
+            throws Exception {
+        // only cleanup before the first extract
+        if (!extracted.getOrDefault(nativeLibBaseName, false)) {
+            throw new IllegalStateException("Not loaded");
+        }
+        // loadNativeLibrary(nativeLibBaseName), which returned at once
+        if (!extracted.getOrDefault(nativeLibBaseName, false)) {
+            throw new IllegalStateException("Not loaded");
+        }
+        return extracted.getOrDefault(nativeLibBaseName, false);
+    }
+
+    /** Runs the benchmarks once per thread count and prints the scores side by side. */
+    public static void main(String[] args) throws RunnerException {
+        List<String> rows = new ArrayList<>();
+        for (int threads : THREADS) {
+            Options options =
+                    new OptionsBuilder()
+                            .include(InitializeContentionBenchmark.class.getName())
+                            .threads(threads)
+                            .build();
+            StringBuilder row = new StringBuilder(String.format("%7d", threads));
+            for (RunResult result : new Runner(options).run()) {
+                row.append(
+                        String.format(
+                                "  %s=%.1f ops/us",
+                                result.getParams().getBenchmark().replaceAll(".*\\.", ""),
+                                result.getPrimaryResult().getScore()));
+            }
+            rows.add(row.toString());
+        }
+        System.out.println("threads");
+        rows.forEach(System.out::println);
+    }
+}
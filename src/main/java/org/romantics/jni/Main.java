@@ -1,29 +1,65 @@
 package org.romantics.jni;
 
+import org.romantics.jni.util.NativeCallProfiler;
 import org.romantics.jni.util.NativeLibLoader;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 
 public class Main {
-    static {
+    public static int plus(int a, int b) {
+        Library.load();
+        if (!NativeCallProfiler.ENABLED) {
+            return add(a, b);
+        }
+        Object call = NativeCallProfiler.begin();
+        try {
+            return add(a, b);
+        } finally {
+            NativeCallProfiler.end(call, "add", 1);
+        }
+    }
+
+    public static int minus(int a, int b) {
+        Library.load();
+        if (!NativeCallProfiler.ENABLED) {
+            return sub(a, b);
+        }
+        Object call = NativeCallProfiler.begin();
         try {
-            NativeLibLoader.initialize("math");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return sub(a, b);
+        } finally {
+            NativeCallProfiler.end(call, "sub", 1);
         }
     }
 
+    // bound to the library on their first call, so callers run Library.load() first
     static native int add(int a, int b);
 
     static native int sub(int a, int b);
 
+    /**
+     * Loads the library on the first native call rather than whenever Main is referenced. Once
+     * the holder is initialized, {@link #load()} is an empty static call the JIT removes.
+     */
+    static final class Library {
+        static {
+            try {
+                NativeLibLoader.initialize("math");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        static void load() {}
+    }
+
     public static void main(String[] args) throws IOException, URISyntaxException {
 
-        System.out.println(add(1, 2));
-        System.out.println(sub(2, 1));
+        System.out.println(plus(1, 2));
+        System.out.println(minus(2, 1));
 
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+package org.romantics.jni.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal reader for the parts of an ELF file the loader cares about: the machine and flags of
+ * the header, the program interpreter and the DT_NEEDED entries of the dynamic section.
+ */
+final class ElfInfo {
+    private static final int PT_LOAD = 1;
+    private static final int PT_DYNAMIC = 2;
+    private static final int PT_INTERP = 3;
+    private static final long DT_NULL = 0;
+    private static final long DT_NEEDED = 1;
+    private static final long DT_STRTAB = 5;
+
+    final boolean is64Bit;
+    final boolean littleEndian;
+    final int machine;
+    final int flags;
+    final String interpreter;
+    final List<String> needed;
+
+    private ElfInfo(
+            boolean is64Bit,
+            boolean littleEndian,
+            int machine,
+            int flags,
+            String interpreter,
+            List<String> needed) {
+        this.is64Bit = is64Bit;
+        this.littleEndian = littleEndian;
+        this.machine = machine;
+        this.flags = flags;
+        this.interpreter = interpreter;
+        this.needed = needed;
+    }
+
+    /**
+     * Reads the given file.
+     *
+     * @return The parsed information, or null if the file is not an ELF file.
+     */
+    static ElfInfo read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 52 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    static ElfInfo parse(ByteBuffer buf) {
+        if (buf.limit() < 52
+                || buf.get(0) != 0x7f
+                || buf.get(1) != 'E'
+                || buf.get(2) != 'L'
+                || buf.get(3) != 'F') {
+            return null;
+        }
+        boolean is64Bit = buf.get(4) == 2;
+        boolean littleEndian = buf.get(5) == 1;
+        buf.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        try {
+            int machine = buf.getShort(18) & 0xffff;
+            int flags = buf.getInt(is64Bit ? 48 : 36);
+            long phoff = is64Bit ? buf.getLong(32) : buf.getInt(28) & 0xffffffffL;
+            int phentsize = buf.getShort(is64Bit ? 54 : 42) & 0xffff;
+            int phnum = buf.getShort(is64Bit ? 56 : 44) & 0xffff;
+
+            String interpreter = null;
+            List<long[]> loads = new ArrayList<>();
+            long dynamicOffset = -1;
+            long dynamicSize = 0;
+            for (int i = 0; i < phnum; i++) {
+                int ph = (int) (phoff + (long) i * phentsize);
+                int type = buf.getInt(ph);
+                long offset = is64Bit ? buf.getLong(ph + 8) : buf.getInt(ph + 4) & 0xffffffffL;
+                long vaddr = is64Bit ? buf.getLong(ph + 16) : buf.getInt(ph + 8) & 0xffffffffL;
+                long filesz = is64Bit ? buf.getLong(ph + 32) : buf.getInt(ph + 16) & 0xffffffffL;
+                if (type == PT_LOAD) {
+                    loads.add(new long[] {vaddr, offset, filesz});
+                } else if (type == PT_DYNAMIC) {
+                    dynamicOffset = offset;
+                    dynamicSize = filesz;
+                } else if (type == PT_INTERP) {
+                    interpreter = readString(buf, offset);
+                }
+            }
+
+            List<String> needed = Collections.emptyList();
+            if (dynamicOffset >= 0) {
+                needed = readNeeded(buf, is64Bit, loads, dynamicOffset, dynamicSize);
+            }
+            return new ElfInfo(is64Bit, littleEndian, machine, flags, interpreter, needed);
+        } catch (IndexOutOfBoundsException e) {
+            // truncated or malformed file
+            return null;
+        }
+    }
+
+    private static List<String> readNeeded(
+            ByteBuffer buf, boolean is64Bit, List<long[]> loads, long offset, long size) {
+        int entrySize = is64Bit ? 16 : 8;
+        List<Long> neededOffsets = new ArrayList<>();
+        long strtab = -1;
+        for (long pos = offset; pos + entrySize <= offset + size; pos += entrySize) {
+            int p = (int) pos;
+            long tag = is64Bit ? buf.getLong(p) : buf.getInt(p);
+            long val = is64Bit ? buf.getLong(p + 8) : buf.getInt(p + 4) & 0xffffffffL;
+            if (tag == DT_NULL) {
+                break;
+            } else if (tag == DT_NEEDED) {
+                neededOffsets.add(val);
+            } else if (tag == DT_STRTAB) {
+                strtab = val;
+            }
+        }
+        if (neededOffsets.isEmpty() || strtab < 0) {
+            return Collections.emptyList();
+        }
+        long strtabOffset = toFileOffset(loads, strtab);
+        if (strtabOffset < 0) {
+            return Collections.emptyList();
+        }
+        List<String> needed = new ArrayList<>(neededOffsets.size());
+        for (long nameOffset : neededOffsets) {
+            needed.add(readString(buf, strtabOffset + nameOffset));
+        }
+        return Collections.unmodifiableList(needed);
+    }
+
+    private static long toFileOffset(List<long[]> loads, long vaddr) {
+        for (long[] load : loads) {
+            if (vaddr >= load[0] && vaddr < load[0] + load[2]) {
+                return vaddr - load[0] + load[1];
+            }
+        }
+        return -1;
+    }
+
+    private static String readString(ByteBuffer buf, long offset) {
+        int start = (int) offset;
+        int end = start;
+        while (end < buf.limit() && buf.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,15 +1,54 @@
 package org.romantics.jni.util;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class LibraryLoaderUtil {
 
+    /**
+     * Get the resource directory within the jar holding the native libraries of all OSes, e.g.
+     * /org/romantics/jni/native.
+     */
+    public static String getNativeLibResourceRoot() {
+        String packagePath = LibraryLoaderUtil.class.getPackage().getName().replace(".", "/").replace("/util","");
+        return String.format("/%s/native", packagePath);
+    }
+
     /**
      * Get the OS-specific resource directory within the jar, where the relevant sqlitejdbc native
      * library is located.
      */
     public static String getNativeLibResourcePath() {
-        String packagePath = LibraryLoaderUtil.class.getPackage().getName().replace(".", "/").replace("/util","");
         return String.format(
-                "/%s/native/%s", packagePath, OSInfo.getNativeLibFolderPathForCurrentOS());
+                "%s/%s", getNativeLibResourceRoot(), OSInfo.getNativeLibFolderPathForCurrentOS());
+    }
+
+    /**
+     * Get the OS-specific resource directories within the jar, best first: one per optimized
+     * build the current CPU can run, e.g. /org/romantics/jni/native/Linux/x86_64/x86-64-v3,
+     * followed by the baseline directory.
+     */
+    public static List<String> getNativeLibResourcePaths() {
+        String baseline = getNativeLibResourcePath();
+        List<String> paths = new ArrayList<>();
+        for (String variant : OSInfo.getCpuVariants()) {
+            paths.add(baseline + "/" + variant);
+        }
+        paths.add(baseline);
+        return paths;
+    }
+
+    /**
+     * Get the resource directory holding the best build of the given library for the current CPU,
+     * falling back to the baseline directory.
+     */
+    public static String getNativeLibResourcePath(String libraryName) {
+        for (String path : getNativeLibResourcePaths()) {
+            if (hasNativeLib(path, libraryName)) {
+                return path;
+            }
+        }
+        return getNativeLibResourcePath();
     }
 
 
@@ -18,7 +57,12 @@ public class LibraryLoaderUtil {
     }
 
     public static boolean hasNativeLib(String path, String libraryName) {
-        System.out.println(LibraryLoaderUtil.class.getResource(path + "/" + libraryName));
-        return LibraryLoaderUtil.class.getResource(path + "/" + libraryName) != null;
+        String resourcePath = path + "/" + libraryName;
+        // The build-time index answers without searching the class path; a jar built without one
+        // may still bundle the library
+        if (NativeLibIndex.get(resourcePath) != null) {
+            return true;
+        }
+        return LibraryLoaderUtil.class.getResource(resourcePath) != null;
     }
 }
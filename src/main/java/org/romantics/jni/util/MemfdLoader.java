@@ -0,0 +1,215 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Loads native libraries on Linux without writing them to the file system: the library bytes are
+ * copied into an anonymous file created with memfd_create(2) and loaded from /proc/self/fd/N.
+ *
+ * <p>memfd_create is called through the Foreign Function and Memory API of JDK 22+, looked up
+ * reflectively since this project targets Java 8. The mode is enabled with the
+ * libraryBaseName.lib.memfd system property; run with --enable-native-access=ALL-UNNAMED (or the
+ * module of this library) to keep the JVM from warning about the restricted call.
+ *
+ * <p>The file descriptors of loaded libraries are never closed: the JDK remembers loaded libraries
+ * by path, and a reused descriptor number would make it skip a different library. Only the
+ * descriptor of a copy that failed to be written or loaded is closed, with {@link #close(Path)}.
+ */
+final class MemfdLoader {
+    private static final Logger logger = LoggerFactory.getLogger(MemfdLoader.class);
+
+    private static final int MFD_CLOEXEC = 1;
+
+    private MemfdLoader() {}
+
+    /** @return True if the library should be loaded from memory. */
+    static boolean isEnabled(String nativeLibBaseName) {
+        // check the property first, so memfd_create is only bound when asked for
+        return Boolean.getBoolean(nativeLibBaseName + ".lib.memfd")
+                && MemfdHolder.MEMFD_CREATE != null;
+    }
+
+    /**
+     * Copies the library into a new anonymous memory file and checks the copy against the digest
+     * of the bytes read, and against the expected digest if there is one. The memory file is
+     * closed again if the copy fails.
+     *
+     * @param input Contents of the library.
+     * @param libraryFileName Library name, only used to name the memory file.
+     * @param expectedDigest SHA-256 the contents must have, or null without an index.
+     * @param trace Trace recording the copy.
+     * @return The /proc/self/fd path of the memory file.
+     */
+    static Path copyToMemory(
+            InputStream input, String libraryFileName, String expectedDigest, NativeLibTrace trace)
+            throws IOException {
+        int fd = memfdCreate(libraryFileName);
+        Path memFile = Paths.get("/proc/self/fd/" + fd);
+        boolean copied = false;
+        try {
+            NativeLibTrace.PhaseTimer extractTimer =
+                    trace.begin(NativeLibraryInfo.Phase.EXTRACTION);
+            String digest = NativeLibFiles.copyWithDigest(input, memFile);
+            long size = Files.size(memFile);
+            trace.extracted(size);
+            extractTimer.end(size, memFile, true);
+
+            NativeLibTrace.PhaseTimer verifyTimer =
+                    trace.begin(NativeLibraryInfo.Phase.VERIFICATION);
+            String copiedDigest = NativeLibFiles.sha256sum(memFile);
+            boolean verified =
+                    digest.equals(copiedDigest)
+                            && (expectedDigest == null || expectedDigest.equals(digest));
+            verifyTimer.end(size, memFile, verified);
+            if (!verified) {
+                throw new IOException(
+                        String.format(
+                                "Copy of %s in memory has SHA-256 %s, read %s, expected %s",
+                                libraryFileName,
+                                copiedDigest,
+                                digest,
+                                expectedDigest == null ? digest : expectedDigest));
+            }
+            copied = true;
+            return memFile;
+        } finally {
+            if (!copied) {
+                close(memFile);
+            }
+        }
+    }
+
+    /** Closes the memory file of a library that could not be copied or loaded. */
+    static void close(Path memFile) {
+        int fd = Integer.parseInt(memFile.getFileName().toString());
+        try {
+            if ((int) MemfdHolder.CLOSE.invokeWithArguments(fd) != 0) {
+                logger.debug("Could not close {}", memFile);
+            }
+        } catch (Throwable e) {
+            logger.debug("Could not close {}", memFile, e);
+        }
+    }
+
+    private static int memfdCreate(String name) throws IOException {
+        try {
+            Object arena = MemfdHolder.ARENA_OF_CONFINED.invoke(null);
+            try {
+                Object cName = MemfdHolder.ALLOCATE_STRING.invoke(arena, name);
+                int fd = (int) MemfdHolder.MEMFD_CREATE.invokeWithArguments(cName, MFD_CLOEXEC);
+                if (fd < 0) {
+                    throw new IOException("memfd_create failed for " + name);
+                }
+                return fd;
+            } finally {
+                MemfdHolder.ARENA_CLOSE.invoke(arena);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException("memfd_create failed for " + name, e);
+        }
+    }
+
+    /** Binds memfd_create once, on first use. Fields are null when it is not available. */
+    private static final class MemfdHolder {
+        private static final MethodHandle MEMFD_CREATE;
+        private static final MethodHandle CLOSE;
+        private static final Method ARENA_OF_CONFINED;
+        private static final Method ARENA_CLOSE;
+        private static final Method ALLOCATE_STRING;
+
+        static {
+            MethodHandle memfdCreate = null;
+            MethodHandle close = null;
+            Method arenaOfConfined = null;
+            Method arenaClose = null;
+            Method allocateString = null;
+            if (OSInfo.getOSName().startsWith("Linux") && javaVersion() >= 22) {
+                try {
+                    Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+                    Class<?> lookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+                    Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+                    Class<?> layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+                    Class<?> valueLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+                    Class<?> descriptorClass =
+                            Class.forName("java.lang.foreign.FunctionDescriptor");
+                    Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+                    Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+
+                    Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+                    Object lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+                    Method find = lookupClass.getMethod("find", String.class);
+                    Optional<?> symbol = (Optional<?>) find.invoke(lookup, "memfd_create");
+                    Optional<?> closeSymbol = (Optional<?>) find.invoke(lookup, "close");
+                    if (symbol.isPresent() && closeSymbol.isPresent()) {
+                        Object jint = valueLayoutClass.getField("JAVA_INT").get(null);
+                        Object argLayouts = Array.newInstance(layoutClass, 2);
+                        Array.set(argLayouts, 0, valueLayoutClass.getField("ADDRESS").get(null));
+                        Array.set(argLayouts, 1, jint);
+                        Object closeArgLayouts = Array.newInstance(layoutClass, 1);
+                        Array.set(closeArgLayouts, 0, jint);
+                        Method descriptorOf =
+                                descriptorClass.getMethod(
+                                        "of", layoutClass, argLayouts.getClass());
+                        Object descriptor = descriptorOf.invoke(null, jint, argLayouts);
+                        Object closeDescriptor = descriptorOf.invoke(null, jint, closeArgLayouts);
+                        Object options = Array.newInstance(optionClass, 0);
+                        Method downcallHandle =
+                                linkerClass.getMethod(
+                                        "downcallHandle",
+                                        segmentClass,
+                                        descriptorClass,
+                                        options.getClass());
+                        memfdCreate =
+                                (MethodHandle)
+                                        downcallHandle.invoke(
+                                                linker, symbol.get(), descriptor, options);
+                        close =
+                                (MethodHandle)
+                                        downcallHandle.invoke(
+                                                linker,
+                                                closeSymbol.get(),
+                                                closeDescriptor,
+                                                options);
+                        arenaOfConfined = arenaClass.getMethod("ofConfined");
+                        arenaClose = arenaClass.getMethod("close");
+                        allocateString = arenaClass.getMethod("allocateFrom", String.class);
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    logger.debug("memfd_create is not available", e);
+                    memfdCreate = null;
+                    close = null;
+                }
+            }
+            MEMFD_CREATE = memfdCreate;
+            CLOSE = close;
+            ARENA_OF_CONFINED = arenaOfConfined;
+            ARENA_CLOSE = arenaClose;
+            ALLOCATE_STRING = allocateString;
+        }
+
+        private static int javaVersion() {
+            String version = System.getProperty("java.specification.version", "1.8");
+            if (version.startsWith("1.")) {
+                version = version.substring(2);
+            }
+            try {
+                return Integer.parseInt(version);
+            } catch (NumberFormatException e) {
+                return 8;
+            }
+        }
+    }
+}
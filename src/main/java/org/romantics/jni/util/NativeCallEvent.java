@@ -0,0 +1,28 @@
+package org.romantics.jni.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event committed for a profiled native method call. Only referenced through {@link
+ * NativeCallProfiler} once it has checked that the running JVM ships JFR.
+ */
+@Name("org.romantics.jni.NativeCall")
+@Label("Native Call")
+@Category("Native Library")
+@Description("A native method call instrumented through NativeCallProfiler")
+@Threshold("100 us")
+@StackTrace(false)
+final class NativeCallEvent extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Size")
+    @Description("Argument or batch size of the call")
+    long size;
+}
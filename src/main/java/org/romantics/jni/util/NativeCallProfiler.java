@@ -0,0 +1,96 @@
+package org.romantics.jni.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Opt-in JFR instrumentation for native method calls. Bindings wrap each native method, keeping
+ * its name and JNI symbol, in a Java method of another name:
+ *
+ * <pre>
+ * public static int plus(int a, int b) {
+ *     if (!NativeCallProfiler.ENABLED) {
+ *         return add(a, b);
+ *     }
+ *     Object call = NativeCallProfiler.begin();
+ *     try {
+ *         return add(a, b);
+ *     } finally {
+ *         NativeCallProfiler.end(call, "add", 1);
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>{@link #ENABLED} is a constant, so with profiling disabled the JIT removes the branch and the
+ * wrapper costs nothing and allocates nothing. With profiling enabled through
+ * -Dorg.romantics.jni.profile=true, one in org.romantics.jni.profile.sampleRate calls (default:
+ * every call) is timed, and calls taking longer than the event threshold of the JFR recording are
+ * committed as org.romantics.jni.NativeCall events.
+ */
+public final class NativeCallProfiler {
+    /** Whether native calls are instrumented at all. */
+    public static final boolean ENABLED =
+            Boolean.getBoolean("org.romantics.jni.profile") && isJfrAvailable();
+
+    private static final int SAMPLE_RATE =
+            Math.max(1, Integer.getInteger("org.romantics.jni.profile.sampleRate", 1));
+
+    private NativeCallProfiler() {}
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, NativeCallProfiler.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts timing a native call.
+     *
+     * @return A handle to pass to {@link #end(Object, String, long)}, or null if this call is not
+     *     sampled or no recording is listening.
+     */
+    public static Object begin() {
+        if (!ENABLED
+                || (SAMPLE_RATE > 1 && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0)) {
+            return null;
+        }
+        return JfrEvents.begin();
+    }
+
+    /**
+     * Finishes timing a native call.
+     *
+     * @param call     Handle returned by {@link #begin()}.
+     * @param function Name of the native function.
+     * @param size     Argument or batch size of the call.
+     */
+    public static void end(Object call, String function, long size) {
+        if (call != null) {
+            JfrEvents.commit(call, function, size);
+        }
+    }
+
+    /** Keeps every reference to jdk.jfr out of classes that must load without it. */
+    private static final class JfrEvents {
+        static Object begin() {
+            NativeCallEvent event = new NativeCallEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        static void commit(Object begun, String function, long size) {
+            NativeCallEvent event = (NativeCallEvent) begun;
+            event.end();
+            if (event.shouldCommit()) {
+                event.function = function;
+                event.size = size;
+                event.commit();
+            }
+        }
+    }
+}
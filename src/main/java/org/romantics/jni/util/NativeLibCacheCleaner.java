@@ -0,0 +1,168 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Evicts unused entries from the content-addressed cache of a library on a background daemon
+ * thread, so that cleaning up never delays loading.
+ *
+ * <p>An entry is the folder holding one extracted version of the library. Its modification time
+ * is refreshed whenever a JVM uses it. Entries unused for longer than
+ * libraryBaseName.lib.cache.maxAgeDays (default 30) are removed, then the least recently used
+ * entries are removed until the cache fits into libraryBaseName.lib.cache.maxSize bytes (default
+ * 256 MiB). Entries leased by a running JVM, see {@link NativeLibLocks}, are never removed.
+ */
+final class NativeLibCacheCleaner {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLibCacheCleaner.class);
+
+    static final long DEFAULT_MAX_AGE_DAYS = 30;
+    static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    /** Temporary files older than this are left over by a JVM that died while extracting. */
+    private static final long STALE_TMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** Cache folders being cleaned. */
+    private static final ConcurrentMap<String, Boolean> scheduled = new ConcurrentHashMap<>();
+
+    private NativeLibCacheCleaner() {}
+
+    /** Marks the cache entry as used now. */
+    static void touch(Path entryFolder) {
+        try {
+            Files.setLastModifiedTime(entryFolder, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Could not update the last use of {}", entryFolder, e);
+        }
+    }
+
+    /**
+     * Starts cleaning up the cache of the given library in the background, once per class loader.
+     * The cleaners of other class loaders skip the entries this one is evicting, see {@link
+     * NativeLibLocks#evict(Path)}.
+     *
+     * @param inUse The cache entry used by this JVM, or null.
+     */
+    static void schedule(String nativeLibBaseName, Path inUse) {
+        File cacheDir = NativeLibLoader.getCacheDir(nativeLibBaseName).getAbsoluteFile();
+        if (scheduled.putIfAbsent(cacheDir.getPath(), Boolean.TRUE) != null) {
+            return;
+        }
+        long maxAgeMillis =
+                TimeUnit.DAYS.toMillis(
+                        Long.getLong(
+                                nativeLibBaseName + ".lib.cache.maxAgeDays", DEFAULT_MAX_AGE_DAYS));
+        long maxSize = Long.getLong(nativeLibBaseName + ".lib.cache.maxSize", DEFAULT_MAX_SIZE);
+
+        Thread cleaner =
+                new Thread(
+                        () -> {
+                            NativeLibLoader.cleanup(nativeLibBaseName);
+                            clean(cacheDir.toPath(), inUse, maxAgeMillis, maxSize);
+                        },
+                        "native-lib-cleanup-" + nativeLibBaseName);
+        cleaner.setDaemon(true);
+        cleaner.setPriority(Thread.MIN_PRIORITY);
+        cleaner.start();
+    }
+
+    /** Removes entries older than maxAgeMillis, then the least recently used beyond maxSize. */
+    static void clean(Path cacheDir, Path inUse, long maxAgeMillis, long maxSize) {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        List<CacheEntry> entries = new ArrayList<>();
+        try (Stream<Path> dirList = Files.list(cacheDir)) {
+            dirList.filter(Files::isDirectory).forEach(dir -> entries.add(new CacheEntry(dir)));
+        } catch (IOException e) {
+            logger.error("Failed to open directory", e);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        List<CacheEntry> evictable = new ArrayList<>();
+        for (CacheEntry entry : entries) {
+            entry.scan(now);
+            totalSize += entry.size;
+            if (!entry.folder.equals(inUse)) {
+                evictable.add(entry);
+            }
+        }
+
+        // least recently used first
+        evictable.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for (CacheEntry entry : evictable) {
+            if (now - entry.lastUsed <= maxAgeMillis && totalSize <= maxSize) {
+                break;
+            }
+            if (entry.delete()) {
+                totalSize -= entry.size;
+            }
+        }
+    }
+
+    /** One extracted version of the library. */
+    private static final class CacheEntry {
+        final Path folder;
+        long lastUsed;
+        long size;
+
+        CacheEntry(Path folder) {
+            this.folder = folder;
+        }
+
+        void scan(long now) {
+            try {
+                lastUsed = Files.getLastModifiedTime(folder).toMillis();
+            } catch (IOException e) {
+                lastUsed = 0;
+            }
+            try (Stream<Path> files = Files.list(folder)) {
+                files.forEach(
+                        file -> {
+                            try {
+                                long modified = Files.getLastModifiedTime(file).toMillis();
+                                if (file.getFileName().toString().endsWith(".tmp")
+                                        && now - modified > STALE_TMP_MILLIS) {
+                                    Files.deleteIfExists(file);
+                                } else {
+                                    size += Files.size(file);
+                                }
+                            } catch (IOException e) {
+                                logger.debug("Could not inspect {}", file, e);
+                            }
+                        });
+            } catch (IOException e) {
+                logger.debug("Could not list {}", folder, e);
+            }
+        }
+
+        boolean delete() {
+            try {
+                if (!NativeLibLocks.evict(folder)) {
+                    logger.debug("Keeping cached native library {} in use", folder);
+                    return false;
+                }
+                logger.debug("Evicted cached native library {}", folder);
+                return true;
+            } catch (IOException e) {
+                // e.g. on Windows a DLL cannot be deleted while another process has it loaded
+                logger.debug("Could not evict cached native library {}", folder, e);
+                return false;
+            }
+        }
+    }
+}
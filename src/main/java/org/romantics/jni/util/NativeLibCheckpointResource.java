@@ -0,0 +1,41 @@
+package org.romantics.jni.util;
+
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Takes part in CRaC checkpoints once a library is loaded: the cache leases are released before
+ * the checkpoint and taken again after the restore, see {@link NativeLibLoader#beforeCheckpoint()}
+ * and {@link NativeLibLoader#afterRestore()}. The loaded libraries stay mapped, so a restored JVM
+ * calls them right away.
+ *
+ * <p>org.crac is an optional dependency: this class is only used when it is on the class path. On
+ * a JDK without CRaC the registration has no effect.
+ */
+final class NativeLibCheckpointResource implements Resource {
+    // the global context only keeps weak references to its resources
+    private static final NativeLibCheckpointResource INSTANCE = new NativeLibCheckpointResource();
+    private static final AtomicBoolean registered = new AtomicBoolean();
+
+    private NativeLibCheckpointResource() {}
+
+    /** Registers with the global CRaC context, once per class loader. */
+    static void register() {
+        if (registered.compareAndSet(false, true)) {
+            Core.getGlobalContext().register(INSTANCE);
+        }
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) {
+        NativeLibLoader.beforeCheckpoint();
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        NativeLibLoader.afterRestore();
+    }
+}
@@ -0,0 +1,187 @@
+package org.romantics.jni.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copy and checksum helpers used while extracting native libraries. All of them work on large
+ * buffers so that a library is read exactly once per operation.
+ */
+final class NativeLibFiles {
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** Suffix of the file next to a library that records its last verification. */
+    static final String VERIFIED_EXT = ".verified";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private NativeLibFiles() {}
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " algorithm is not available: " + e);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 value of the input stream. The stream is closed afterwards.
+     *
+     * @return Lower-case hex digest of the InputStream.
+     */
+    static String sha256sum(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            MessageDigest digest = newDigest();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int readLen;
+            while ((readLen = in.read(buf)) >= 0) {
+                digest.update(buf, 0, readLen);
+            }
+            return toHex(digest.digest());
+        }
+    }
+
+    /** Reads the rest of the input stream into memory. The stream is left open. */
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int readLen;
+        while ((readLen = in.read(buf)) >= 0) {
+            out.write(buf, 0, readLen);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Computes the SHA-256 value of a file. The file is memory-mapped, except on Windows where a
+     * mapping would keep the file from being renamed or deleted until it is garbage collected.
+     *
+     * @return Lower-case hex digest of the file.
+     */
+    static String sha256sum(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (File.separatorChar == '\\') {
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buf) >= 0) {
+                    // through Buffer: the ByteBuffer overrides of Java 9+ are missing on Java 8
+                    ((Buffer) buf).flip();
+                    digest.update(buf);
+                    ((Buffer) buf).clear();
+                }
+            } else {
+                long size = channel.size();
+                for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                    MappedByteBuffer mapped =
+                            channel.map(
+                                    FileChannel.MapMode.READ_ONLY,
+                                    position,
+                                    Math.min(MAP_CHUNK_SIZE, size - position));
+                    digest.update(mapped);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Copies the input stream into the target file and computes its SHA-256 value in the same
+     * pass. The stream is closed afterwards.
+     *
+     * @return Lower-case hex digest of the copied bytes.
+     */
+    static String copyWithDigest(InputStream input, Path target) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = input;
+             FileChannel out =
+                     FileChannel.open(
+                             target,
+                             StandardOpenOption.WRITE,
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buf);
+            int readLen;
+            while ((readLen = in.read(buf)) >= 0) {
+                digest.update(buf, 0, readLen);
+                ((Buffer) wrapped).clear().limit(readLen);
+                while (wrapped.hasRemaining()) {
+                    out.write(wrapped);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Records next to the file that it was verified to have the given digest, together with its
+     * size, modification time and file key, so that the record no longer matches once the file is
+     * replaced or changed.
+     */
+    static void markVerified(Path file, String digest) throws IOException {
+        String verification = verification(file, digest);
+        Path marker = file.resolveSibling(file.getFileName() + VERIFIED_EXT);
+        if (verification.equals(readMarker(marker))) {
+            return;
+        }
+        Path writing =
+                Files.createTempFile(file.getParent(), marker.getFileName().toString(), ".tmp");
+        try {
+            Files.write(writing, verification.getBytes(StandardCharsets.UTF_8));
+            NativeLibLoader.publish(writing, marker);
+        } finally {
+            Files.deleteIfExists(writing);
+        }
+    }
+
+    /** @return True if the record of {@link #markVerified} still matches the file. */
+    static boolean isMarkedVerified(Path file, String digest) throws IOException {
+        Path marker = file.resolveSibling(file.getFileName() + VERIFIED_EXT);
+        return verification(file, digest).equals(readMarker(marker));
+    }
+
+    private static String verification(Path file, String digest) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return digest
+                + ' '
+                + attributes.size()
+                + ' '
+                + attributes.lastModifiedTime().toMillis()
+                + ' '
+                + attributes.fileKey();
+    }
+
+    private static String readMarker(Path marker) throws IOException {
+        try {
+            return new String(Files.readAllBytes(marker), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
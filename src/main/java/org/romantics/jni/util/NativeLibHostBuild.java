@@ -0,0 +1,449 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compiles the C sources of the native-sources jar for the CPU of the host, as an alternative to
+ * the portable prebuilt library, which Makefile.common builds with -Os for the oldest CPU of each
+ * architecture. Enabled with libraryBaseName.lib.hostbuild=true on Linux hosts with a C compiler.
+ *
+ * <p>properties:
+ *
+ * <ul>
+ *   <li>libraryBaseName.lib.hostbuild: true to compile the library on first use;
+ *   <li>libraryBaseName.lib.cc: the compiler, cc by default;
+ *   <li>libraryBaseName.lib.cflags: the optimization flags, -O3 -march=native by default.
+ * </ul>
+ *
+ * <p>The library is compiled once per host and kept in the cache of the library, in an entry
+ * named after the SHA-256 of the CPU (the model and feature flags of /proc/cpuinfo), the compiler,
+ * the flags and the sources. A compile error, or a compiled library that does not load, is
+ * recorded in the entry for a day, so that the runs of that day go straight to the prebuilt
+ * library; transient failures such as a timeout or a missing compiler are not recorded. Any
+ * failure falls back to the prebuilt library.
+ *
+ * <p>The sources are not part of the main jar. The Maven build packages them in the jar with the
+ * native-sources classifier, which applications that compile the library add to their class path:
+ * the sources of each library below {@link #getSourcesRoot()}, e.g.
+ * /org/romantics/jni/native-src/math/org_math_Math.c, listed together with their digest in {@link
+ * #SOURCES_RESOURCE} by {@link #main(String[])}.
+ */
+public final class NativeLibHostBuild {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLibHostBuild.class);
+
+    static final String SOURCES_RESOURCE = "META-INF/org.romantics/jni/native-sources.properties";
+
+    private static final String FILES_SUFFIX = ".files";
+    private static final String DIGEST_SUFFIX = ".sha256";
+    private static final String DEFAULT_CC = "cc";
+    private static final String DEFAULT_CFLAGS = "-O3 -march=native";
+    // the flags of Makefile.common every build of the library needs
+    private static final List<String> REQUIRED_FLAGS =
+            Arrays.asList("-fPIC", "-fvisibility=hidden", "-shared", "-pthread");
+    private static final List<String> LIBRARIES = Collections.singletonList("-lm");
+    private static final long TIMEOUT_SECONDS = 300;
+    private static final String FAILED_EXT = ".failed";
+    private static final long FAILED_RETRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final String CPU_INFO = "/proc/cpuinfo";
+    // the lines of /proc/cpuinfo that identify the CPU, not its current state such as cpu MHz
+    private static final List<String> CPU_KEYS =
+            Arrays.asList(
+                    "vendor_id",
+                    "cpu family",
+                    "model",
+                    "model name",
+                    "stepping",
+                    "flags",
+                    "CPU implementer",
+                    "CPU architecture",
+                    "CPU variant",
+                    "CPU part",
+                    "Features",
+                    "isa",
+                    "uarch");
+
+    private NativeLibHostBuild() {}
+
+    /** @return The resource folder holding the sources of every library. */
+    static String getSourcesRoot() {
+        return LibraryLoaderUtil.getNativeLibResourceRoot() + "-src";
+    }
+
+    /**
+     * @return True if the library is to be compiled for this host: enabled, on Linux, and the
+     *     sources are bundled.
+     */
+    static boolean isEnabled(String nativeLibBaseName) {
+        if (!Boolean.getBoolean(nativeLibBaseName + ".lib.hostbuild")
+                || !OSInfo.getOSName().startsWith("Linux")
+                || OSInfo.isAndroid()) {
+            return false;
+        }
+        if (SourcesHolder.SOURCES.getProperty(nativeLibBaseName + FILES_SUFFIX) == null) {
+            logger.warn(
+                    "No sources of native library {} to compile for this host, add the jar with"
+                            + " the native-sources classifier to the class path",
+                    nativeLibBaseName);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Provides the library compiled for this host, compiling it unless an earlier run did.
+     *
+     * @return The compiled library, or null if it could not be compiled.
+     */
+    static Path build(String nativeLibBaseName, NativeLibTrace trace) {
+        String cc = System.getProperty(nativeLibBaseName + ".lib.cc", DEFAULT_CC);
+        List<String> command = new ArrayList<>();
+        command.add(cc);
+        String cflags = System.getProperty(nativeLibBaseName + ".lib.cflags", DEFAULT_CFLAGS);
+        for (String flag : cflags.trim().split("\\s+")) {
+            if (!flag.isEmpty()) {
+                command.add(flag);
+            }
+        }
+        command.addAll(REQUIRED_FLAGS);
+
+        String key =
+                sha256(
+                        OSInfo.getNativeLibFolderPathForCurrentOS()
+                                + "\n"
+                                + CpuHolder.SIGNATURE
+                                + "\n"
+                                + StringUtils.join(command, " ")
+                                + "\n"
+                                + SourcesHolder.SOURCES.getProperty(
+                                        nativeLibBaseName + DIGEST_SUFFIX));
+        Path libFile =
+                NativeLibLoader.getCacheDir(nativeLibBaseName)
+                        .getAbsoluteFile()
+                        .toPath()
+                        .resolve(key)
+                        .resolve(LibraryLoaderUtil.getNativeLibName(nativeLibBaseName));
+        Path entryFolder = libFile.getParent();
+        NativeLibTrace.PhaseTimer compileTimer = trace.begin(NativeLibraryInfo.Phase.COMPILATION);
+        try {
+            Files.createDirectories(entryFolder);
+            // Hold a lease for as long as this JVM runs, so no other JVM evicts the entry
+            NativeLibLocks.acquireLease(libFile);
+            if (isBuilt(libFile)) {
+                logger.debug("Reusing native library compiled for this host {}", libFile);
+                NativeLibCacheCleaner.touch(entryFolder);
+                compileTimer.end(Files.size(libFile), libFile, true);
+                return libFile;
+            }
+            // Only one process compiles an entry; the others wait here and reuse its library
+            Closeable extractionLock = NativeLibLocks.lockExtraction(entryFolder);
+            try {
+                if (isBuilt(libFile)) {
+                    logger.debug("Reusing native library compiled by another JVM {}", libFile);
+                    NativeLibCacheCleaner.touch(entryFolder);
+                    compileTimer.end(Files.size(libFile), libFile, true);
+                    return libFile;
+                }
+                if (hasFailedRecently(libFile)) {
+                    logger.debug(
+                            "Not compiling {}: an earlier compilation failed, see {}",
+                            nativeLibBaseName,
+                            failedMarker(libFile));
+                    compileTimer.end(0, libFile, false);
+                    return null;
+                }
+                compile(nativeLibBaseName, command, libFile);
+            } finally {
+                extractionLock.close();
+            }
+            NativeLibCacheCleaner.touch(entryFolder);
+            compileTimer.end(Files.size(libFile), libFile, true);
+            return libFile;
+        } catch (IOException e) {
+            logger.warn(
+                    "Could not compile native library {} for this host, using the prebuilt one",
+                    nativeLibBaseName,
+                    e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while compiling native library {}", nativeLibBaseName);
+        }
+        compileTimer.end(0, libFile, false);
+        return null;
+    }
+
+    /**
+     * Records that the library failed to compile or to load, so that the runs of the next day do
+     * not compile or load it again.
+     */
+    static void markFailed(Path libFile, String reason) {
+        try {
+            Files.write(failedMarker(libFile), reason.getBytes(StandardCharsets.UTF_8));
+            Files.deleteIfExists(digestFile(libFile));
+        } catch (IOException e) {
+            logger.debug("Could not mark {} as failed", libFile, e);
+        }
+    }
+
+    /**
+     * @return True if the library failed to compile or to load within the last day. An older
+     *     record is deleted, so that a fixed compiler or system gets another chance.
+     */
+    private static boolean hasFailedRecently(Path libFile) throws IOException {
+        Path marker = failedMarker(libFile);
+        if (!Files.exists(marker)) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - Files.getLastModifiedTime(marker).toMillis();
+        if (age < FAILED_RETRY_MILLIS) {
+            return true;
+        }
+        Files.deleteIfExists(marker);
+        return false;
+    }
+
+    /** @return True if the library was compiled on a host with another CPU than this one. */
+    static boolean isBuiltForAnotherCpu() {
+        return !CpuHolder.SIGNATURE.equals(readCpuSignature());
+    }
+
+    /**
+     * Compiles the sources in a temporary folder and publishes the library with a rename, so that
+     * other JVMs sharing the cache never observe a partially written library. Called while holding
+     * the extraction lock of the cache entry.
+     */
+    private static void compile(String nativeLibBaseName, List<String> command, Path libFile)
+            throws IOException, InterruptedException {
+        Path buildDir = Files.createTempDirectory(nativeLibBaseName + "-hostbuild");
+        Path compilingLibFile =
+                Files.createTempFile(
+                        libFile.getParent(), libFile.getFileName().toString(), ".tmp");
+        try {
+            List<String> sources = new ArrayList<>();
+            String sourcesFolder = getSourcesRoot() + "/" + nativeLibBaseName + "/";
+            String files = SourcesHolder.SOURCES.getProperty(nativeLibBaseName + FILES_SUFFIX);
+            for (String name : files.split(",")) {
+                try (InputStream in =
+                        NativeLibHostBuild.class.getResourceAsStream(sourcesFolder + name)) {
+                    if (in == null) {
+                        throw new IOException("Missing source " + sourcesFolder + name);
+                    }
+                    Files.write(buildDir.resolve(name), NativeLibFiles.readFully(in));
+                }
+                if (name.endsWith(".c")) {
+                    sources.add(name);
+                }
+            }
+
+            List<String> fullCommand = new ArrayList<>(command);
+            fullCommand.add("-I.");
+            fullCommand.add("-o");
+            fullCommand.add(compilingLibFile.toString());
+            fullCommand.addAll(sources);
+            fullCommand.addAll(LIBRARIES);
+            Path log = buildDir.resolve("build.log");
+            logger.info(
+                    "Compiling native library {} for this host: {}",
+                    nativeLibBaseName,
+                    StringUtils.join(fullCommand, " "));
+            Process process =
+                    new ProcessBuilder(fullCommand)
+                            .directory(buildDir.toFile())
+                            .redirectErrorStream(true)
+                            .redirectOutput(log.toFile())
+                            .start();
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                // e.g. a loaded host; not recorded, the next run tries again
+                process.destroyForcibly();
+                throw new IOException("Timed out after " + TIMEOUT_SECONDS + " s");
+            }
+            String output = new String(Files.readAllBytes(log), StandardCharsets.UTF_8).trim();
+            if (process.exitValue() != 0) {
+                String failure = "Exit code " + process.exitValue();
+                markFailed(
+                        libFile,
+                        StringUtils.join(fullCommand, " ") + "\n" + failure + "\n" + output);
+                throw new IOException(failure + ": " + output);
+            }
+            if (!output.isEmpty()) {
+                logger.debug("{}", output);
+            }
+
+            compilingLibFile.toFile().setReadable(true);
+            compilingLibFile.toFile().setExecutable(true);
+            String digest = NativeLibFiles.sha256sum(compilingLibFile);
+            NativeLibLoader.publish(compilingLibFile, libFile);
+            // written last: a library without its digest is compiled again
+            Files.write(digestFile(libFile), digest.getBytes(StandardCharsets.ISO_8859_1));
+        } finally {
+            Files.deleteIfExists(compilingLibFile);
+            try (Stream<Path> files = Files.list(buildDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(buildDir);
+        }
+    }
+
+    /** @return True if the library was completely compiled and is still intact. */
+    private static boolean isBuilt(Path libFile) throws IOException {
+        Path digestFile = digestFile(libFile);
+        if (!Files.exists(libFile) || !Files.exists(digestFile)) {
+            return false;
+        }
+        String digest = new String(Files.readAllBytes(digestFile), StandardCharsets.ISO_8859_1);
+        return digest.trim().equals(NativeLibFiles.sha256sum(libFile));
+    }
+
+    private static Path digestFile(Path libFile) {
+        return libFile.resolveSibling(libFile.getFileName() + DIGEST_SUFFIX);
+    }
+
+    private static Path failedMarker(Path libFile) {
+        return libFile.resolveSibling(libFile.getFileName() + FAILED_EXT);
+    }
+
+    private static String sha256(String text) {
+        return NativeLibFiles.toHex(
+                NativeLibFiles.newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads the lines identifying the first CPU of /proc/cpuinfo, e.g. model name and flags.
+     *
+     * @return The CPU signature, empty where /proc/cpuinfo does not exist.
+     */
+    private static String readCpuSignature() {
+        StringBuilder signature = new StringBuilder();
+        Path cpuInfo = Paths.get(CPU_INFO);
+        if (!Files.isReadable(cpuInfo)) {
+            return "";
+        }
+        try (Stream<String> lines = Files.lines(cpuInfo)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                if (line.trim().isEmpty()) {
+                    if (signature.length() > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0 && CPU_KEYS.contains(line.substring(0, colon).trim())) {
+                    signature.append(line.trim()).append('\n');
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not read {}", cpuInfo, e);
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Writes the list of sources for the native-sources jar. Invoked by the Maven build during
+     * process-classes.
+     *
+     * <p>usage: NativeLibHostBuild &lt;sources directory&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: NativeLibHostBuild <sources directory>");
+            System.exit(1);
+        }
+        index(Paths.get(args[0]));
+    }
+
+    /**
+     * Lists the sources of every library below {@link #getSourcesRoot()} of the given directory
+     * into {@link #SOURCES_RESOURCE}, with a digest over their names and contents.
+     */
+    static void index(Path classesDir) throws IOException {
+        Path sourcesRoot = classesDir.resolve(getSourcesRoot().substring(1));
+        if (!Files.isDirectory(sourcesRoot)) {
+            return;
+        }
+        TreeMap<String, List<Path>> libraries = new TreeMap<>();
+        try (Stream<Path> folders = Files.list(sourcesRoot)) {
+            for (Path folder : (Iterable<Path>) folders.filter(Files::isDirectory)::iterator) {
+                List<Path> files = new ArrayList<>();
+                try (Stream<Path> list = Files.list(folder)) {
+                    list.filter(Files::isRegularFile).sorted().forEach(files::add);
+                }
+                if (!files.isEmpty()) {
+                    libraries.put(folder.getFileName().toString(), files);
+                }
+            }
+        }
+
+        Path sourcesFile = classesDir.resolve(SOURCES_RESOURCE);
+        Files.createDirectories(sourcesFile.getParent());
+        try (BufferedWriter out =
+                Files.newBufferedWriter(sourcesFile, StandardCharsets.ISO_8859_1)) {
+            out.write("# Native library sources of this jar, generated by NativeLibHostBuild");
+            out.newLine();
+            for (String nativeLibBaseName : libraries.keySet()) {
+                List<String> names = new ArrayList<>();
+                MessageDigest digest = NativeLibFiles.newDigest();
+                for (Path file : libraries.get(nativeLibBaseName)) {
+                    String name = file.getFileName().toString();
+                    names.add(name);
+                    digest.update(name.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(Files.readAllBytes(file));
+                    digest.update((byte) 0);
+                }
+                out.write(nativeLibBaseName + FILES_SUFFIX + "=" + StringUtils.join(names, ","));
+                out.newLine();
+                out.write(
+                        nativeLibBaseName
+                                + DIGEST_SUFFIX
+                                + "="
+                                + NativeLibFiles.toHex(digest.digest()));
+                out.newLine();
+            }
+        }
+        System.out.printf(
+                "Indexed the sources of %d native libraries into %s%n",
+                libraries.size(),
+                sourcesFile);
+    }
+
+    /** Loads the list of bundled sources once, on first use. Empty if there is none. */
+    private static final class SourcesHolder {
+        private static final Properties SOURCES = new Properties();
+
+        static {
+            try (InputStream in =
+                    NativeLibHostBuild.class.getResourceAsStream("/" + SOURCES_RESOURCE)) {
+                if (in != null) {
+                    SOURCES.load(in);
+                }
+            } catch (IOException e) {
+                logger.debug("Could not read {}", SOURCES_RESOURCE, e);
+            }
+        }
+    }
+
+    /** Reads the CPU signature once, on first use. */
+    private static final class CpuHolder {
+        private static final String SIGNATURE = readCpuSignature();
+    }
+}
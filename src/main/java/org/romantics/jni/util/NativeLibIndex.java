@@ -0,0 +1,305 @@
+package org.romantics.jni.util;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index of the native libraries bundled in this jar, generated at build time by {@link
+ * #main(String[])}. For every library it records the size, the SHA-256 digest and the shared
+ * libraries it depends on, keyed by its path below the native resource folder, e.g.
+ *
+ * <pre>
+ * Linux/x86_64/libmath.so.size=15112
+ * Linux/x86_64/libmath.so.sha256=f3b5...
+ * Linux/x86_64/libmath.so.deps=libc.so.6
+ * Linux/x86_64/libmath.so.compression=gzip
+ * </pre>
+ *
+ * <p>Looking up a library in the index avoids probing the class path for every candidate path.
+ * When built with --compress, the libraries are stored gzipped next to their original name with a
+ * .gz suffix; size and digest always describe the uncompressed library.
+ */
+public final class NativeLibIndex {
+    static final String INDEX_RESOURCE = "META-INF/org.romantics/jni/native-index.properties";
+
+    private static final String SIZE_SUFFIX = ".size";
+    private static final String DIGEST_SUFFIX = ".sha256";
+    private static final String DEPS_SUFFIX = ".deps";
+    private static final String COMPRESSION_SUFFIX = ".compression";
+    private static final String GZIP = "gzip";
+
+    /** Suffix of the resource holding a compressed library. */
+    static final String GZIP_SUFFIX = ".gz";
+
+    private NativeLibIndex() {}
+
+    /** A bundled native library as described by the index. */
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final String digest;
+        private final List<String> dependencies;
+        private final boolean compressed;
+
+        Entry(
+                String path,
+                long size,
+                String digest,
+                List<String> dependencies,
+                boolean compressed) {
+            this.path = path;
+            this.size = size;
+            this.digest = digest;
+            this.dependencies = dependencies;
+            this.compressed = compressed;
+        }
+
+        /**
+         * @return Path of the library below the native resource folder, e.g.
+         *     Linux/x86_64/libmath.so
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /** @return Size of the library in bytes. */
+        public long getSize() {
+            return size;
+        }
+
+        /** @return Lower-case hex SHA-256 digest of the library. */
+        public String getDigest() {
+            return digest;
+        }
+
+        /** @return File names of the shared libraries this library needs (ELF DT_NEEDED). */
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+
+        /** @return True if the library is stored gzipped, as the path followed by .gz. */
+        public boolean isCompressed() {
+            return compressed;
+        }
+    }
+
+    /** @return True if a jar on the class path was built with a native library index. */
+    public static boolean isAvailable() {
+        return IndexHolder.ENTRIES != null;
+    }
+
+    /**
+     * Looks up a library in the index.
+     *
+     * @param resourcePath Resource path as returned by {@link
+     *     LibraryLoaderUtil#getNativeLibResourcePath()} followed by the library file name.
+     * @return The entry, or null if no index is available or none lists the library. The
+     *     library may still be bundled by a jar built without an index.
+     */
+    public static Entry get(String resourcePath) {
+        Map<String, Entry> entries = IndexHolder.ENTRIES;
+        if (entries == null) {
+            return null;
+        }
+        String root = LibraryLoaderUtil.getNativeLibResourceRoot() + "/";
+        if (!resourcePath.startsWith(root)) {
+            return null;
+        }
+        return entries.get(resourcePath.substring(root.length()));
+    }
+
+    /**
+     * @return All entries of the index, keyed by their path below the native resource folder, or
+     *     an empty map if the index is not available.
+     */
+    public static Map<String, Entry> entries() {
+        Map<String, Entry> entries = IndexHolder.ENTRIES;
+        return entries == null ? Collections.<String, Entry>emptyMap() : entries;
+    }
+
+    static Map<String, Entry> parse(Properties index) {
+        Map<String, Entry> entries = new HashMap<>();
+        for (String key : index.stringPropertyNames()) {
+            if (!key.endsWith(DIGEST_SUFFIX)) {
+                continue;
+            }
+            String path = key.substring(0, key.length() - DIGEST_SUFFIX.length());
+            String deps = index.getProperty(path + DEPS_SUFFIX, "").trim();
+            entries.put(
+                    path,
+                    new Entry(
+                            path,
+                            Long.parseLong(index.getProperty(path + SIZE_SUFFIX, "-1").trim()),
+                            index.getProperty(key).trim(),
+                            deps.isEmpty()
+                                    ? Collections.<String>emptyList()
+                                    : Collections.unmodifiableList(
+                                            Arrays.asList(deps.split(","))),
+                            GZIP.equals(index.getProperty(path + COMPRESSION_SUFFIX))));
+        }
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Writes the index for the native libraries found below the native resource folder of the
+     * given classes directory. Invoked by the Maven build during process-classes. With
+     * --compress, every library is replaced by a gzipped copy.
+     *
+     * <p>usage: NativeLibIndex &lt;classes directory&gt; [--compress]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: NativeLibIndex <classes directory> [--compress]");
+            System.exit(1);
+        }
+        Path classesDir = Paths.get(args[0]);
+        boolean compress = args.length > 1 && "--compress".equals(args[1]);
+        Path nativeRoot =
+                classesDir.resolve(LibraryLoaderUtil.getNativeLibResourceRoot().substring(1));
+        Path indexFile = classesDir.resolve(INDEX_RESOURCE);
+
+        // Keyed by the uncompressed path; a library copied again by an incremental build wins over
+        // the compressed copy left from the previous one
+        Map<String, Path> libraries = new TreeMap<>();
+        if (Files.isDirectory(nativeRoot)) {
+            try (Stream<Path> files = Files.walk(nativeRoot)) {
+                for (Path library : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    String path = nativeRoot.relativize(library).toString().replace('\\', '/');
+                    if (path.endsWith(GZIP_SUFFIX)) {
+                        libraries.putIfAbsent(
+                                path.substring(0, path.length() - GZIP_SUFFIX.length()), library);
+                    } else {
+                        libraries.put(path, library);
+                    }
+                }
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, Path> library : libraries.entrySet()) {
+            String path = library.getKey();
+            Path file = library.getValue();
+            boolean compressed = file.getFileName().toString().endsWith(GZIP_SUFFIX);
+            byte[] contents;
+            if (compressed) {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                    contents = NativeLibFiles.readFully(in);
+                }
+            } else {
+                contents = Files.readAllBytes(file);
+                if (compress) {
+                    writeCompressed(
+                            contents, file.resolveSibling(file.getFileName() + GZIP_SUFFIX));
+                    Files.delete(file);
+                    compressed = true;
+                }
+            }
+            ElfInfo elf = ElfInfo.parse(ByteBuffer.wrap(contents));
+            entries.add(
+                    new Entry(
+                            path,
+                            contents.length,
+                            NativeLibFiles.sha256sum(new ByteArrayInputStream(contents)),
+                            elf == null ? Collections.<String>emptyList() : elf.needed,
+                            compressed));
+        }
+        write(
+                indexFile,
+                entries,
+                "Native libraries bundled in this jar, generated by NativeLibIndex");
+        System.out.printf("Indexed %d native libraries into %s%n", libraries.size(), indexFile);
+    }
+
+    /** Writes the given entries in the format read by {@link #parse(Properties)}. */
+    static void write(Path indexFile, Collection<Entry> entries, String comment)
+            throws IOException {
+        if (indexFile.getParent() != null) {
+            Files.createDirectories(indexFile.getParent());
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(indexFile, StandardCharsets.ISO_8859_1)) {
+            out.write("# " + comment);
+            out.newLine();
+            for (Entry entry : entries) {
+                String path = entry.getPath();
+                out.write(path + SIZE_SUFFIX + "=" + entry.getSize());
+                out.newLine();
+                out.write(path + DIGEST_SUFFIX + "=" + entry.getDigest());
+                out.newLine();
+                out.write(
+                        path
+                                + DEPS_SUFFIX
+                                + "="
+                                + StringUtils.join(entry.getDependencies(), ","));
+                out.newLine();
+                if (entry.isCompressed()) {
+                    out.write(path + COMPRESSION_SUFFIX + "=" + GZIP);
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    private static void writeCompressed(byte[] contents, Path target) throws IOException {
+        try (OutputStream out =
+                new GZIPOutputStream(Files.newOutputStream(target)) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                }) {
+            out.write(contents);
+        }
+    }
+
+    /**
+     * Loads the indexes of all jars on the class path once, on first use. When several list the
+     * same library, the first one wins, like the class loader does for the library itself.
+     */
+    private static final class IndexHolder {
+        private static final Map<String, Entry> ENTRIES;
+
+        static {
+            Map<String, Entry> entries = null;
+            Enumeration<URL> indexFiles;
+            try {
+                indexFiles = NativeLibIndex.class.getClassLoader().getResources(INDEX_RESOURCE);
+            } catch (IOException e) {
+                LoggerFactory.getLogger(NativeLibIndex.class)
+                        .warn("Could not find native library indexes", e);
+                indexFiles = Collections.emptyEnumeration();
+            }
+            while (indexFiles.hasMoreElements()) {
+                URL indexFile = indexFiles.nextElement();
+                try (InputStream in = indexFile.openStream()) {
+                    Properties index = new Properties();
+                    index.load(in);
+                    if (entries == null) {
+                        entries = new HashMap<>();
+                    }
+                    for (Map.Entry<String, Entry> entry : parse(index).entrySet()) {
+                        entries.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LoggerFactory.getLogger(NativeLibIndex.class)
+                            .warn("Could not read native library index: {}", indexFile, e);
+                }
+            }
+            ENTRIES = entries == null ? null : Collections.unmodifiableMap(entries);
+        }
+    }
+}
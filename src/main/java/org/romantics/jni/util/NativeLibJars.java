@@ -0,0 +1,517 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads native libraries straight out of the jar files on disk, instead of through a URLConnection
+ * with caches disabled, which parses the jar again on every open. Inside a nested jar, such as a
+ * Spring Boot fat jar with jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/... or
+ * jar:nested:/app.jar/!BOOT-INF/lib/lib.jar!/... URLs, that also means inflating the nested jar
+ * again.
+ *
+ * <p>A jar on disk is opened once as a {@link JarFile} and kept until {@link #closeAll()}. A
+ * nested jar must be stored uncompressed, as Spring Boot requires, so its entries are read in
+ * place from the outer file: its central directory is read once, and each stream opens the outer
+ * file for as long as it is read. Stored entries are read as they are, deflated ones are inflated
+ * on the fly. Anything else, e.g. ZIP64 archives, is left to the URLConnection.
+ *
+ * <p>Every entry is checked against the CRC-32 of the central directory once read to its end.
+ */
+final class NativeLibJars {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLibJars.class);
+
+    private static final String SEPARATOR = "!/";
+    private static final String NESTED_PROTOCOL = "nested:";
+    private static final String NESTED_SEPARATOR = "/!";
+
+    /** Jar files on disk by path. */
+    private static final ConcurrentHashMap<Path, JarFile> files = new ConcurrentHashMap<>();
+    /** Central directories of the jar files holding nested jars, by path. */
+    private static final ConcurrentHashMap<Path, ZipRegion> outerRegions =
+            new ConcurrentHashMap<>();
+    /** Jars, nested ones included, by the part of their URL before the entry name. */
+    private static final ConcurrentHashMap<String, Jar> jars = new ConcurrentHashMap<>();
+
+    private NativeLibJars() {}
+
+    /**
+     * Opens a resource of a jar, possibly nested in another one.
+     *
+     * @return The contents of the resource, or null if the URL is not one this class reads, e.g.
+     *     not a jar: URL or the entry is missing or stored with an unsupported method.
+     */
+    static InputStream open(URL url) throws IOException {
+        if (!"jar".equals(url.getProtocol())) {
+            return null;
+        }
+        String spec = url.toString().substring("jar:".length());
+        int entrySeparator = spec.lastIndexOf(SEPARATOR);
+        if (entrySeparator < 0) {
+            return null;
+        }
+        String jarSpec = spec.substring(0, entrySeparator);
+        String entryName = decode(spec.substring(entrySeparator + SEPARATOR.length()));
+
+        Jar jar = jars.get(jarSpec);
+        if (jar == null) {
+            jar = openJar(jarSpec);
+            if (jar == null) {
+                return null;
+            }
+            Jar raced = jars.putIfAbsent(jarSpec, jar);
+            if (raced != null) {
+                jar = raced;
+            }
+        }
+        return jar.open(entryName);
+    }
+
+    /** Closes all jar files, e.g. before a CRaC checkpoint. They are opened again when needed. */
+    static void closeAll() {
+        jars.clear();
+        outerRegions.clear();
+        for (Path path : files.keySet()) {
+            JarFile file = files.remove(path);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    logger.debug("Could not close {}", path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the jar part of a URL: file:/app.jar, file:/app.jar!/BOOT-INF/lib/lib.jar or
+     * nested:/app.jar/!BOOT-INF/lib/lib.jar. A nested part that is a folder, such as
+     * BOOT-INF/classes, becomes a prefix of the entry names of the outer jar.
+     *
+     * @return The jar, or null if the URL is not supported.
+     */
+    private static Jar openJar(String jarSpec) throws IOException {
+        String outerSpec;
+        String nestedName;
+        if (jarSpec.startsWith(NESTED_PROTOCOL)) {
+            String location = jarSpec.substring(NESTED_PROTOCOL.length());
+            int separator = location.indexOf(NESTED_SEPARATOR);
+            if (separator < 0) {
+                return null;
+            }
+            outerSpec = "file:" + location.substring(0, separator);
+            nestedName = location.substring(separator + NESTED_SEPARATOR.length());
+        } else {
+            int separator = jarSpec.indexOf(SEPARATOR);
+            outerSpec = separator < 0 ? jarSpec : jarSpec.substring(0, separator);
+            nestedName =
+                    separator < 0 ? null : jarSpec.substring(separator + SEPARATOR.length());
+        }
+        // deeper nesting is not supported
+        if (!outerSpec.startsWith("file:")
+                || (nestedName != null && nestedName.contains(SEPARATOR))) {
+            return null;
+        }
+        Path outerPath;
+        try {
+            outerPath = Paths.get(new URI(outerSpec));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            logger.debug("Not reading {} directly", outerSpec, e);
+            return null;
+        }
+
+        JarFile outer = openFile(outerPath);
+        if (nestedName == null || nestedName.isEmpty()) {
+            return new PlainJar(outer, "");
+        }
+        nestedName = decode(nestedName);
+        ZipEntry nested = outer.getEntry(nestedName);
+        if (nested == null || nested.isDirectory() || nestedName.endsWith("/")) {
+            // a folder of the outer jar, e.g. BOOT-INF/classes
+            return new PlainJar(outer, nestedName.endsWith("/") ? nestedName : nestedName + "/");
+        }
+        if (nested.getMethod() != ZipEntry.STORED) {
+            logger.debug("{} is compressed, reading it through its URL", nestedName);
+            return null;
+        }
+        ZipRegion outerRegion = outerRegions.get(outerPath);
+        if (outerRegion == null) {
+            outerRegion = ZipRegion.read(outerPath, 0, -1);
+            if (outerRegion == null) {
+                return null;
+            }
+            outerRegions.putIfAbsent(outerPath, outerRegion);
+        }
+        ZipRegion.Entry entry = outerRegion.entries.get(nestedName);
+        if (entry == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(outerPath, StandardOpenOption.READ)) {
+            return ZipRegion.read(outerPath, outerRegion.dataOffset(channel, entry), entry.size);
+        }
+    }
+
+    /** @return The jar file at the given path, opened once. */
+    private static JarFile openFile(Path path) throws IOException {
+        JarFile file = files.get(path);
+        if (file != null) {
+            return file;
+        }
+        // not verified: the libraries are checked against their digest instead
+        file = new JarFile(path.toFile(), false);
+        JarFile raced = files.putIfAbsent(path, file);
+        if (raced != null) {
+            file.close();
+            return raced;
+        }
+        return file;
+    }
+
+    private static String decode(String urlPart) {
+        try {
+            return URLDecoder.decode(urlPart.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A jar whose entries can be opened by name. */
+    private interface Jar {
+        /** @return The contents of the entry, or null if it is missing or cannot be read here. */
+        InputStream open(String name) throws IOException;
+    }
+
+    /** A jar file on disk, or a folder of one with the entry names below it. */
+    private static final class PlainJar implements Jar {
+        private final JarFile file;
+        private final String prefix;
+
+        PlainJar(JarFile file, String prefix) {
+            this.file = file;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public InputStream open(String name) throws IOException {
+            ZipEntry entry = file.getEntry(prefix + name);
+            if (entry == null || entry.isDirectory()) {
+                return null;
+            }
+            return new CrcInputStream(file.getInputStream(entry), entry.getSize(), entry.getCrc());
+        }
+    }
+
+    /**
+     * A zip archive occupying a range of a file, read with this class's own reader: a jar stored
+     * in another one.
+     */
+    static final class ZipRegion implements Jar {
+        static final int STORED = 0;
+        static final int DEFLATED = 8;
+
+        private static final int END_SIGNATURE = 0x06054b50;
+        private static final int CENTRAL_SIGNATURE = 0x02014b50;
+        private static final int LOCAL_SIGNATURE = 0x04034b50;
+        private static final int END_SIZE = 22;
+        private static final int CENTRAL_SIZE = 46;
+        private static final int LOCAL_SIZE = 30;
+        private static final int MAX_COMMENT = 0xffff;
+        private static final long ZIP64_MAGIC = 0xffffffffL;
+
+        final Path file;
+        final long start;
+        final Map<String, Entry> entries;
+
+        ZipRegion(Path file, long start, Map<String, Entry> entries) {
+            this.file = file;
+            this.start = start;
+            this.entries = entries;
+        }
+
+        /** An entry of the central directory. */
+        static final class Entry {
+            final int method;
+            final long crc;
+            final long compressedSize;
+            final long size;
+            final long localHeaderOffset;
+
+            Entry(int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+                this.method = method;
+                this.crc = crc;
+                this.compressedSize = compressedSize;
+                this.size = size;
+                this.localHeaderOffset = localHeaderOffset;
+            }
+        }
+
+        /**
+         * Reads the central directory of the archive in the given range of the file.
+         *
+         * @param length Length of the range, or -1 for the rest of the file.
+         * @return The archive, or null if it is not a zip archive this class can read.
+         */
+        static ZipRegion read(Path file, long start, long length) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return read(
+                        channel, file, start, length < 0 ? channel.size() - start : length);
+            }
+        }
+
+        private static ZipRegion read(FileChannel channel, Path file, long start, long length)
+                throws IOException {
+            // the end record is followed by a comment of up to 64 KiB
+            int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT);
+            if (tailLength < END_SIZE) {
+                return null;
+            }
+            ByteBuffer tail = readFully(channel, start + length - tailLength, tailLength);
+            int end = -1;
+            for (int i = tailLength - END_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return null;
+            }
+            int count = tail.getShort(end + 10) & 0xffff;
+            long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+            long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+            if (directorySize == ZIP64_MAGIC
+                    || directoryOffset == ZIP64_MAGIC
+                    || directoryOffset + directorySize > length) {
+                return null;
+            }
+
+            ByteBuffer directory =
+                    readFully(channel, start + directoryOffset, (int) directorySize);
+            Map<String, Entry> entries = new HashMap<>(count * 2);
+            int position = 0;
+            while (position + CENTRAL_SIZE <= directorySize
+                    && directory.getInt(position) == CENTRAL_SIGNATURE) {
+                int method = directory.getShort(position + 10) & 0xffff;
+                long crc = directory.getInt(position + 16) & 0xffffffffL;
+                long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+                long size = directory.getInt(position + 24) & 0xffffffffL;
+                int nameLength = directory.getShort(position + 28) & 0xffff;
+                int extraLength = directory.getShort(position + 30) & 0xffff;
+                int commentLength = directory.getShort(position + 32) & 0xffff;
+                long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+                byte[] name = new byte[nameLength];
+                ((Buffer) directory).position(position + CENTRAL_SIZE);
+                directory.get(name);
+                if (compressedSize != ZIP64_MAGIC
+                        && size != ZIP64_MAGIC
+                        && localHeaderOffset != ZIP64_MAGIC) {
+                    entries.put(
+                            new String(name, StandardCharsets.UTF_8),
+                            new Entry(method, crc, compressedSize, size, localHeaderOffset));
+                }
+                position += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+            }
+            return new ZipRegion(file, start, entries);
+        }
+
+        /**
+         * Opens the entry with a channel of its own, closed with the stream.
+         *
+         * @return The contents of the entry, or null if it is missing or cannot be read here.
+         */
+        @Override
+        public InputStream open(String name) throws IOException {
+            Entry entry = entries.get(name);
+            if (entry == null || (entry.method != STORED && entry.method != DEFLATED)) {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            InputStream data;
+            try {
+                data =
+                        new RegionInputStream(
+                                channel, dataOffset(channel, entry), entry.compressedSize);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (entry.method == DEFLATED) {
+                Inflater inflater = new Inflater(true);
+                data =
+                        new InflaterInputStream(data, inflater, NativeLibFiles.BUFFER_SIZE) {
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                inflater.end();
+                            }
+                        };
+            }
+            return new CrcInputStream(data, entry.size, entry.crc);
+        }
+
+        /** @return Position of the data of the entry in the file. */
+        long dataOffset(FileChannel channel, Entry entry) throws IOException {
+            long header = start + entry.localHeaderOffset;
+            ByteBuffer local = readFully(channel, header, LOCAL_SIZE);
+            if (local.getInt(0) != LOCAL_SIGNATURE) {
+                throw new IOException("Corrupted zip entry at " + header);
+            }
+            int nameLength = local.getShort(26) & 0xffff;
+            int extraLength = local.getShort(28) & 0xffff;
+            return header + LOCAL_SIZE + nameLength + extraLength;
+        }
+
+        private static ByteBuffer readFully(FileChannel channel, long position, int length)
+                throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Truncated zip archive");
+                }
+            }
+            // through Buffer: the ByteBuffer overrides of Java 9+ are missing on Java 8
+            ((Buffer) buffer).flip();
+            return buffer;
+        }
+    }
+
+    /** Reads a range of a file with positional reads, and closes the file with the stream. */
+    private static final class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RegionInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n =
+                    channel.read(
+                            ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)),
+                            position);
+            if (n < 0) {
+                throw new EOFException("Truncated zip entry");
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Checks the size and CRC-32 of an entry once it is read to its end. Unknown values, -1, are
+     * not checked.
+     */
+    static final class CrcInputStream extends FilterInputStream {
+        private final long size;
+        private final long crc;
+        private final CRC32 actual = new CRC32();
+        private long read;
+
+        CrcInputStream(InputStream in, long size, long crc) {
+            super(in);
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                check();
+                return n;
+            }
+            actual.update(b, off, n);
+            read += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read through, so that the checksum covers the skipped bytes
+            byte[] b = new byte[(int) Math.min(n, NativeLibFiles.BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(b, 0, (int) Math.min(b.length, n - skipped));
+                if (r < 0) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void check() throws IOException {
+            if (size >= 0 && read != size) {
+                throw new ZipException(
+                        String.format("Zip entry has %d bytes instead of %d", read, size));
+            }
+            if (crc >= 0 && actual.getValue() != crc) {
+                throw new ZipException(
+                        String.format(
+                                "Zip entry has CRC-32 %08x instead of %08x",
+                                actual.getValue(), crc));
+            }
+        }
+    }
+}
@@ -22,16 +22,25 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 
 /**
@@ -48,35 +57,369 @@ import java.util.stream.Stream;
 public class NativeLibLoader {
     private static final Logger logger = LoggerFactory.getLogger(NativeLibLoader.class);
 
-    private static final String LOCK_EXT = ".lck";
-    private static Map<String, Boolean> extracted = new ConcurrentHashMap<String, Boolean>();
+    private static final String LOCK_EXT = NativeLibLocks.LOCK_EXT;
+
+    /** Descriptor written by {@link #main(String[])} next to the libraries it extracts. */
+    static final String EXTRACTED_INDEX = "native-index.properties";
+
+    /**
+     * One future per library base name. The thread that installs the future performs the load,
+     * concurrent callers for the same library wait on it, and once it is complete the lookup is a
+     * lock-free read. Every class loader defining this class loads the library on its own: the JVM
+     * refuses to load one file into two class loaders, so the later ones load an instance of it,
+     * see {@link #linkForClassLoader}.
+     */
+    private static final ConcurrentHashMap<String, CompletableFuture<NativeLibraryInfo>> extracted =
+            new ConcurrentHashMap<>();
+
+    /** Libraries declared by {@link NativeLibraryProvider}s, once {@link #preloadAll()} ran. */
+    private static final ConcurrentHashMap<String, NativeLibraryDescriptor> declared =
+            new ConcurrentHashMap<>();
+
+    /** Libraries being loaded by the current thread, to refuse a nested load of the same one. */
+    private static final ThreadLocal<Set<String>> loadingOnThisThread =
+            ThreadLocal.withInitial(HashSet::new);
+
+    /** Cached library files verified by this class loader, with their digest. */
+    private static final ConcurrentMap<Path, String> verifiedFiles = new ConcurrentHashMap<>();
+
+    /** Message of the UnsatisfiedLinkError thrown for a file loaded by another class loader. */
+    private static final String LOADED_ELSEWHERE = "already loaded in another classloader";
+    /** Instances of a library tried per class loader, see {@link #loadInstance}. */
+    static final int MAX_INSTANCES = 64;
+
+    /** Outcome of {@link #load(File, NativeLibTrace)}. */
+    private enum LoadResult {
+        LOADED,
+        LOADED_BY_ANOTHER_CLASS_LOADER,
+        FAILED
+    }
 
     /**
      * Loads SQLite native JDBC library.
      *
      * @return True if SQLite native library is successfully loaded; false otherwise.
      */
-    public static synchronized boolean initialize(String nativeLibBaseName) throws Exception {
-        // only cleanup before the first extract
-        if (!extracted.getOrDefault(nativeLibBaseName, false)) {
-            cleanup(nativeLibBaseName);
+    public static boolean initialize(String nativeLibBaseName) throws Exception {
+        return initialize(nativeLibBaseName, null);
+    }
+
+    /**
+     * Starts loading the library in the background, e.g. during application boot. A later {@link
+     * #initialize(String)}, typically from the static initializer of the class declaring the native
+     * methods, only waits for the work still left.
+     *
+     * @param executor Executor running platform detection, extraction and loading.
+     * @return Completes with where the library was loaded from, or exceptionally if it could not
+     *     be loaded. Completing or cancelling it has no effect on the load.
+     */
+    public static CompletableFuture<NativeLibraryInfo> initializeAsync(
+            String nativeLibBaseName, Executor executor) {
+        CompletableFuture<NativeLibraryInfo> loading = extracted.get(nativeLibBaseName);
+        if (loading == null) {
+            CompletableFuture<NativeLibraryInfo> created = new CompletableFuture<>();
+            loading = extracted.putIfAbsent(nativeLibBaseName, created);
+            if (loading == null) {
+                loading = created;
+                try {
+                    executor.execute(
+                            () ->
+                                    load(
+                                            nativeLibBaseName,
+                                            new NativeLibTrace(nativeLibBaseName),
+                                            created));
+                } catch (RuntimeException e) {
+                    extracted.remove(nativeLibBaseName, created);
+                    created.completeExceptionally(e);
+                }
+            }
+        }
+        // a copy, so that callers cannot complete the shared future
+        return loading.thenApply(info -> info);
+    }
+
+    /**
+     * Loads every library declared by a {@link NativeLibraryProvider} or a
+     * META-INF/org.romantics/jni/native-libraries.properties descriptor visible to the context
+     * class loader, in one parallel pass as {@link #initialize(Collection)} does, typically at
+     * boot. Binding classes calling {@link #initialize(String)} afterwards find their library
+     * loaded.
+     *
+     * @return True if all declared libraries are successfully loaded.
+     */
+    public static boolean preloadAll() throws Exception {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return preloadAll(
+                classLoader == null ? NativeLibLoader.class.getClassLoader() : classLoader);
+    }
+
+    /**
+     * Loads every library declared to the given class loader.
+     *
+     * @see #preloadAll()
+     */
+    public static boolean preloadAll(ClassLoader classLoader) throws Exception {
+        Map<String, NativeLibraryDescriptor> descriptors =
+                NativeLibraryProviders.discover(classLoader);
+        logger.debug("Preloading native libraries {}", descriptors.values());
+        for (NativeLibraryDescriptor descriptor : descriptors.values()) {
+            declared.merge(descriptor.getBaseName(), descriptor, NativeLibraryDescriptor::merge);
+        }
+        return initialize(descriptors.keySet());
+    }
+
+    /**
+     * Loads the given native libraries together with the bundled libraries they depend on. The
+     * libraries are extracted in parallel and then loaded one by one, dependencies first, so that
+     * the dynamic linker finds every dependency already loaded.
+     *
+     * @param nativeLibBaseNames Base names of the libraries to load, e.g. "math".
+     * @return True if all libraries are successfully loaded.
+     */
+    public static boolean initialize(Collection<String> nativeLibBaseNames) throws Exception {
+        return initialize(nativeLibBaseNames, ExtractorHolder.EXECUTOR);
+    }
+
+    /**
+     * Loads the given native libraries together with the bundled libraries they depend on, running
+     * the extraction on the given executor.
+     *
+     * @see #initialize(Collection)
+     */
+    public static boolean initialize(Collection<String> nativeLibBaseNames, Executor executor)
+            throws Exception {
+        Map<String, NativeLibTrace> prepared = new HashMap<>();
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+
+        // Extract level by level: every round extracts the newly discovered libraries in parallel
+        Set<String> pending = new LinkedHashSet<>(nativeLibBaseNames);
+        while (!pending.isEmpty()) {
+            Map<String, CompletableFuture<NativeLibTrace>> extracting = new LinkedHashMap<>();
+            for (String nativeLibBaseName : pending) {
+                extracting.put(
+                        nativeLibBaseName,
+                        CompletableFuture.supplyAsync(
+                                () -> prepareNativeLibrary(nativeLibBaseName), executor));
+            }
+            pending = new LinkedHashSet<>();
+            for (Map.Entry<String, CompletableFuture<NativeLibTrace>> entry :
+                    extracting.entrySet()) {
+                String nativeLibBaseName = entry.getKey();
+                NativeLibTrace trace = entry.getValue().join();
+                prepared.put(nativeLibBaseName, trace);
+
+                List<String> deps =
+                        getBundledDependencies(nativeLibBaseName, trace.extractedLibFile);
+                dependencies.put(nativeLibBaseName, deps);
+                for (String dep : deps) {
+                    if (!dependencies.containsKey(dep) && !extracting.containsKey(dep)) {
+                        pending.add(dep);
+                    }
+                }
+            }
+        }
+
+        boolean loaded = true;
+        for (String nativeLibBaseName : topologicalOrder(dependencies)) {
+            loaded &= initialize(nativeLibBaseName, prepared.get(nativeLibBaseName));
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads the library once per JVM.
+     *
+     * @param trace Trace of the load so far, holding the library if it was already extracted, or
+     *     null to start a new one.
+     */
+    private static boolean initialize(String nativeLibBaseName, NativeLibTrace trace)
+            throws Exception {
+        CompletableFuture<NativeLibraryInfo> loading = extracted.get(nativeLibBaseName);
+        if (loading == null) {
+            CompletableFuture<NativeLibraryInfo> created = new CompletableFuture<>();
+            loading = extracted.putIfAbsent(nativeLibBaseName, created);
+            if (loading == null) {
+                loading = created;
+                load(
+                        nativeLibBaseName,
+                        trace == null ? new NativeLibTrace(nativeLibBaseName) : trace,
+                        created);
+            }
+        }
+        if (!loading.isDone() && loadingOnThisThread.get().contains(nativeLibBaseName)) {
+            // waiting would never end
+            throw new IllegalStateException(
+                    "Native library "
+                            + nativeLibBaseName
+                            + " is being loaded by this thread, which called initialize again,"
+                            + " e.g. from JNI_OnLoad or a static initializer it triggered");
+        }
+        return await(loading) != null;
+    }
+
+    /** Loads the library and completes the future registered for it in {@link #extracted}. */
+    private static void load(
+            String nativeLibBaseName,
+            NativeLibTrace trace,
+            CompletableFuture<NativeLibraryInfo> created) {
+        Set<String> loadingHere = loadingOnThisThread.get();
+        loadingHere.add(nativeLibBaseName);
+        try {
+            NativeLibraryInfo loaded = loadNativeLibrary(nativeLibBaseName, trace);
+
+            // clean up old copies in the background, keeping the one just loaded
+            if (loaded.getSource() != NativeLibraryInfo.Source.BUILTIN) {
+                NativeLibTrace.PhaseTimer cleanupTimer =
+                        trace.begin(NativeLibraryInfo.Phase.CLEANUP);
+                NativeLibCacheCleaner.schedule(
+                        nativeLibBaseName,
+                        trace.extractedLibFile == null
+                                ? null
+                                : trace.extractedLibFile.getParent());
+                cleanupTimer.end();
+            }
+
+            NativeLibraryInfo info = trace.toInfo();
+            logger.debug("Loaded native library: {}", info);
+            if (CracHolder.AVAILABLE) {
+                NativeLibCheckpointResource.register();
+            }
+            created.complete(info);
+        } catch (Throwable e) {
+            // forget the failed attempt so that a later call can retry
+            extracted.remove(nativeLibBaseName, created);
+            created.completeExceptionally(e);
+        } finally {
+            loadingHere.remove(nativeLibBaseName);
+        }
+    }
+
+    /**
+     * Releases the cache leases of the JVM and closes the jar files read by {@link NativeLibJars}
+     * before a CRaC checkpoint, since the checkpoint must not hold open files. Libraries loaded
+     * from memory keep their memory file open, which may make the checkpoint fail; load them from
+     * the cache instead.
+     */
+    static void beforeCheckpoint() {
+        NativeLibJars.closeAll();
+        for (Path libFile : NativeLibLocks.releaseLeases()) {
+            // other JVMs may replace the file while it is not leased
+            verifiedFiles.remove(libFile);
+        }
+        for (String nativeLibBaseName : extracted.keySet()) {
+            NativeLibraryInfo info = getLibraryInfo(nativeLibBaseName);
+            if (info != null && info.getSource() == NativeLibraryInfo.Source.MEMORY) {
+                logger.warn(
+                        "Native library {} keeps its memory file {} open during the checkpoint",
+                        nativeLibBaseName,
+                        info.getPath());
+            }
+        }
+    }
+
+    /**
+     * Takes the cache leases again after a CRaC restore. A library that went missing meanwhile,
+     * e.g. evicted by another JVM or restored on another host, is extracted again so that its
+     * path is valid; an intact one is only verified.
+     */
+    static void afterRestore() {
+        for (String nativeLibBaseName : extracted.keySet()) {
+            NativeLibraryInfo info = getLibraryInfo(nativeLibBaseName);
+            if (info == null || info.getPath() == null) {
+                continue;
+            }
+            Path loadedLibFile = Paths.get(info.getPath());
+            if (info.getSource() == NativeLibraryInfo.Source.HOST_BUILD
+                    && NativeLibHostBuild.isBuiltForAnotherCpu()) {
+                // the compiled code may use instructions this CPU lacks
+                logger.warn(
+                        "Native library {} was compiled for the CPU of the checkpointed host,"
+                                + " restart without a checkpoint on this one",
+                        loadedLibFile);
+            }
+            if (info.getSource() != NativeLibraryInfo.Source.CACHED
+                    && info.getSource() != NativeLibraryInfo.Source.EXTRACTED) {
+                if (info.getSource() != NativeLibraryInfo.Source.MEMORY
+                        && !Files.exists(loadedLibFile)) {
+                    logger.warn("Loaded native library {} is gone after restore", loadedLibFile);
+                }
+                continue;
+            }
+            try {
+                NativeLibTrace trace = new NativeLibTrace(nativeLibBaseName);
+                Path extractedLibFile = extractLibraryFile(nativeLibBaseName, trace);
+                if (extractedLibFile == null
+                        || !extractedLibFile.getParent().equals(loadedLibFile.getParent())) {
+                    logger.warn(
+                            "Restored on a platform with another build of {}, keeping {}",
+                            nativeLibBaseName,
+                            loadedLibFile);
+                } else if (!Files.exists(loadedLibFile)) {
+                    // the instance of this class loader, see linkForClassLoader
+                    linkForClassLoader(extractedLibFile, loadedLibFile, trace);
+                }
+            } catch (IOException | FileException e) {
+                logger.error("Could not restore native library {}", loadedLibFile, e);
+            }
+        }
+    }
+
+    /**
+     * Reports where the library was loaded from and how long each phase of the load took.
+     *
+     * @return The load information, or null if the library has not been loaded (yet).
+     */
+    public static NativeLibraryInfo getLibraryInfo(String nativeLibBaseName) {
+        CompletableFuture<NativeLibraryInfo> loading = extracted.get(nativeLibBaseName);
+        if (loading == null || !loading.isDone() || loading.isCompletedExceptionally()) {
+            return null;
+        }
+        return loading.join();
+    }
+
+    private static NativeLibraryInfo await(CompletableFuture<NativeLibraryInfo> loading)
+            throws Exception {
+        try {
+            return loading.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
         }
-        loadNativeLibrary(nativeLibBaseName);
-        return extracted.getOrDefault(nativeLibBaseName, false);
     }
 
-    private static File getTempDir(String nativeLibBaseName) {
-        return new File(
-                System.getProperty(nativeLibBaseName + ".lib.tmpdir", System.getProperty("java.io.tmpdir")));
+    /**
+     * Folder holding the extracted copies of the library, one sub folder per content hash. It is
+     * private to the user, see {@link NativeLibTempDir#getCacheDir(String)}. Can be overridden
+     * with the libraryBaseName.lib.cachedir system property, e.g. for a cache shared on purpose.
+     */
+    static File getCacheDir(String nativeLibBaseName) {
+        String cacheDir = System.getProperty(nativeLibBaseName + ".lib.cachedir");
+        if (cacheDir != null) {
+            return new File(cacheDir);
+        }
+        return NativeLibTempDir.getCacheDir(nativeLibBaseName);
     }
 
     /**
      * Deleted old native libraries e.g. on Windows the DLL file is not removed on VM-Exit (bug #80)
+     *
+     * <p>These are the per-JVM copies extracted before the content-addressed cache was introduced,
+     * into libraryBaseName.lib.tmpdir or else java.io.tmpdir, whichever folder {@link
+     * NativeLibTempDir} chooses now. Runs on the background thread of {@link
+     * NativeLibCacheCleaner}.
      */
     static void cleanup(String nativeLibBaseName) {
         String searchPattern = "library-" + getVersion();
+        String legacyTempDir =
+                System.getProperty(
+                        nativeLibBaseName + ".lib.tmpdir", System.getProperty("java.io.tmpdir"));
 
-        try (Stream<Path> dirList = Files.list(getTempDir(nativeLibBaseName).toPath())) {
+        try (Stream<Path> dirList = Files.list(Paths.get(legacyTempDir))) {
             dirList.filter(
                             path ->
                                     !path.getFileName().toString().endsWith(LOCK_EXT)
@@ -106,113 +449,551 @@ public class NativeLibLoader {
      */
     public static boolean isNativeMode(String nativeLibBaseName) throws Exception {
         // load the driver
-        initialize(nativeLibBaseName);
-        return extracted.getOrDefault(nativeLibBaseName, false);
+        return initialize(nativeLibBaseName);
     }
 
     /**
-     * Computes the MD5 value of the input stream.
+     * Extracts the library ahead of loading it. Nothing is extracted when the library is taken
+     * from libraryBaseName.lib.path or is not bundled for the current OS.
      *
-     * @param input InputStream.
-     * @return Encrypted string for the InputStream.
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * @return The trace of the extraction, holding the extracted library file if any.
      */
-    static String md5sum(InputStream input) throws IOException {
-        BufferedInputStream in = new BufferedInputStream(input);
-
+    private static NativeLibTrace prepareNativeLibrary(String nativeLibBaseName) {
+        NativeLibTrace trace = new NativeLibTrace(nativeLibBaseName);
+        if (extracted.containsKey(nativeLibBaseName)
+                || System.getProperty(nativeLibBaseName + ".lib.path") != null
+                || Boolean.getBoolean(nativeLibBaseName + ".lib.builtin")) {
+            return trace;
+        }
+        // Loaded from memory later; the index still knows the dependencies
+        if (MemfdLoader.isEnabled(nativeLibBaseName) && NativeLibIndex.isAvailable()) {
+            return trace;
+        }
+        // Compiled for this host later, the prebuilt library is only extracted if that fails
+        if (NativeLibHostBuild.isEnabled(nativeLibBaseName)) {
+            return trace;
+        }
         try {
-            MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-            DigestInputStream digestInputStream = new DigestInputStream(in, digest);
-            for (; digestInputStream.read() >= 0; ) {
+            trace.extractedLibFile = extractLibraryFile(nativeLibBaseName, trace);
+        } catch (FileException e) {
+            logger.error("Failed to extract native library {}", nativeLibBaseName, e);
+        }
+        return trace;
+    }
+
+    /**
+     * Finds the libraries bundled for the current OS that the given library links against. The
+     * dependencies are taken from the native library index, or read from the ELF dynamic section
+     * of the extracted file when there is no index.
+     *
+     * @return Base names of the bundled dependencies.
+     */
+    static List<String> getBundledDependencies(String nativeLibBaseName, Path extractedLibFile) {
+        String nativeLibName = LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
+        String nativeLibPath = LibraryLoaderUtil.getNativeLibResourcePath(nativeLibName);
+
+        List<String> needed = Collections.emptyList();
+        NativeLibIndex.Entry indexEntry = NativeLibIndex.get(nativeLibPath + "/" + nativeLibName);
+        if (indexEntry != null) {
+            needed = indexEntry.getDependencies();
+        } else if (extractedLibFile != null) {
+            try {
+                ElfInfo elf = ElfInfo.read(extractedLibFile);
+                if (elf != null) {
+                    needed = elf.needed;
+                }
+            } catch (IOException e) {
+                logger.warn("Could not read dependencies of {}", extractedLibFile, e);
             }
+        }
 
-            ByteArrayOutputStream md5out = new ByteArrayOutputStream();
-            md5out.write(digest.digest());
-            return md5out.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("MD5 algorithm is not available: " + e);
-        } finally {
-            in.close();
+        // Map file names such as libfoo.so back to base names, skipping system libraries
+        String[] nameParts = LibraryLoaderUtil.getNativeLibName("@").split("@", -1);
+        List<String> deps = new ArrayList<>();
+        NativeLibraryDescriptor descriptor = declared.get(nativeLibBaseName);
+        if (descriptor != null) {
+            deps.addAll(descriptor.getDependencies());
         }
+        for (String dep : needed) {
+            if (dep.length() > nameParts[0].length() + nameParts[1].length()
+                    && dep.startsWith(nameParts[0])
+                    && dep.endsWith(nameParts[1])
+                    && LibraryLoaderUtil.hasNativeLib(nativeLibPath, dep)) {
+                String depBaseName =
+                        dep.substring(nameParts[0].length(), dep.length() - nameParts[1].length());
+                if (!deps.contains(depBaseName)) {
+                    deps.add(depBaseName);
+                }
+            }
+        }
+        return deps;
+    }
+
+    /**
+     * Orders the libraries so that every library comes after its dependencies. Dependencies
+     * without an entry of their own come first, and a cycle is broken where it is found.
+     */
+    static List<String> topologicalOrder(Map<String, List<String>> dependencies) {
+        List<String> order = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Set<String> visiting = new HashSet<>();
+        for (String nativeLibBaseName : dependencies.keySet()) {
+            visit(nativeLibBaseName, dependencies, visited, visiting, order);
+        }
+        return order;
     }
 
-    private static boolean contentsEquals(InputStream in1, InputStream in2) throws IOException {
-        if (!(in1 instanceof BufferedInputStream)) {
-            in1 = new BufferedInputStream(in1);
+    private static void visit(
+            String nativeLibBaseName,
+            Map<String, List<String>> dependencies,
+            Set<String> visited,
+            Set<String> visiting,
+            List<String> order) {
+        if (visited.contains(nativeLibBaseName)) {
+            return;
         }
-        if (!(in2 instanceof BufferedInputStream)) {
-            in2 = new BufferedInputStream(in2);
+        if (!visiting.add(nativeLibBaseName)) {
+            logger.warn("Circular dependency between native libraries at {}", nativeLibBaseName);
+            return;
         }
+        List<String> deps =
+                dependencies.getOrDefault(nativeLibBaseName, Collections.<String>emptyList());
+        for (String dep : deps) {
+            visit(dep, dependencies, visited, visiting, order);
+        }
+        visiting.remove(nativeLibBaseName);
+        visited.add(nativeLibBaseName);
+        order.add(nativeLibBaseName);
+    }
 
-        int ch = in1.read();
-        while (ch != -1) {
-            int ch2 = in2.read();
-            if (ch != ch2) {
-                return false;
+    /**
+     * Get the resource directories to look the library up in, best first: those of {@link
+     * LibraryLoaderUtil#getNativeLibResourcePaths()}, limited to the variants shipped for the
+     * library if its {@link NativeLibraryDescriptor} lists them.
+     */
+    private static List<String> getNativeLibResourcePaths(String nativeLibBaseName) {
+        List<String> nativeLibPaths = LibraryLoaderUtil.getNativeLibResourcePaths();
+        NativeLibraryDescriptor descriptor = declared.get(nativeLibBaseName);
+        if (descriptor == null || descriptor.getVariants().isEmpty()) {
+            return nativeLibPaths;
+        }
+        String baseline = LibraryLoaderUtil.getNativeLibResourcePath();
+        List<String> shipped = new ArrayList<>();
+        for (String path : nativeLibPaths) {
+            if (path.equals(baseline)
+                    || descriptor
+                            .getVariants()
+                            .contains(path.substring(path.lastIndexOf('/') + 1))) {
+                shipped.add(path);
             }
-            ch = in1.read();
         }
-        int ch2 = in2.read();
-        return ch2 == -1;
+        return shipped;
     }
 
     /**
-     * Extracts and loads the specified library file to the target folder
+     * Extracts the library bundled for the current OS into the content-addressed cache folder.
+     *
+     * @return The extracted library file, or null if the library is not bundled for the current
+     *     OS or could not be extracted.
+     */
+    private static Path extractLibraryFile(String nativeLibBaseName, NativeLibTrace trace)
+            throws FileException {
+        NativeLibTrace.PhaseTimer platformTimer =
+                trace.begin(NativeLibraryInfo.Phase.PLATFORM_DETECTION);
+        List<String> nativeLibPaths = getNativeLibResourcePaths(nativeLibBaseName);
+        platformTimer.end(0, nativeLibPaths.get(0), true);
+
+        // Pick the best build for this CPU, falling back to the baseline build
+        String nativeLibName = LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
+        NativeLibTrace.PhaseTimer lookupTimer =
+                trace.begin(NativeLibraryInfo.Phase.RESOURCE_LOOKUP);
+        String nativeLibPath = null;
+        for (String candidate : nativeLibPaths) {
+            if (LibraryLoaderUtil.hasNativeLib(candidate, nativeLibName)) {
+                nativeLibPath = candidate;
+                break;
+            }
+        }
+        lookupTimer.end(
+                0,
+                nativeLibPath == null
+                        ? LibraryLoaderUtil.getNativeLibResourcePath()
+                        : nativeLibPath,
+                nativeLibPath != null);
+        if (nativeLibPath == null) {
+            return null;
+        }
+        // content-addressed library folder
+        File cacheFolder = getCacheDir(nativeLibBaseName).getAbsoluteFile();
+        return extractLibraryFile(nativeLibPath, nativeLibName, cacheFolder, trace);
+    }
+
+    /**
+     * Extracts the specified library file into the content-addressed cache folder. The extracted
+     * copy lives in a sub folder named after the SHA-256 of the bundled resource, so a copy left
+     * behind by a previous JVM is verified and reused without being written again.
      *
      * @param libFolderForCurrentOS Library path.
      * @param libraryFileName       Library name.
-     * @param targetFolder          Target folder.
-     * @return
+     * @param cacheFolder           Cache folder.
+     * @param trace                 Trace recording the phases of the extraction.
+     * @return The extracted library file, or null if it could not be extracted.
      */
-    private static boolean extractAndLoadLibraryFile(
-            String libFolderForCurrentOS, String libraryFileName, String targetFolder)
+    private static Path extractLibraryFile(
+            String libFolderForCurrentOS,
+            String libraryFileName,
+            File cacheFolder,
+            NativeLibTrace trace)
             throws FileException {
         String nativeLibraryFilePath = libFolderForCurrentOS + "/" + libraryFileName;
-        // Include architecture name in temporary filename in order to avoid conflicts
-        // when multiple JVMs with different architectures running at the same time
-        String uuid = UUID.randomUUID().toString();
-        String extractedLibFileName =
-                String.format("library-%s-%s-%s", getVersion(), uuid, libraryFileName);
-        String extractedLckFileName = extractedLibFileName + LOCK_EXT;
-
-        Path extractedLibFile = Paths.get(targetFolder, extractedLibFileName);
-        Path extractedLckFile = Paths.get(targetFolder, extractedLckFileName);
 
         try {
-            // Extract a native library file into the target directory
-            try (InputStream reader = getResourceAsStream(nativeLibraryFilePath)) {
-                if (Files.notExists(extractedLckFile)) {
-                    Files.createFile(extractedLckFile);
+            // The build-time index already knows the digest; only hash the resource without it
+            NativeLibIndex.Entry indexEntry = NativeLibIndex.get(nativeLibraryFilePath);
+            String digest;
+            if (indexEntry != null) {
+                digest = indexEntry.getDigest();
+            } else {
+                NativeLibTrace.PhaseTimer lookupTimer =
+                        trace.begin(NativeLibraryInfo.Phase.RESOURCE_LOOKUP);
+                try (InputStream nativeIn = openNativeLibrary(nativeLibraryFilePath)) {
+                    if (nativeIn == null) {
+                        lookupTimer.end(0, nativeLibraryFilePath, false);
+                        return null;
+                    }
+                    digest = NativeLibFiles.sha256sum(nativeIn);
                 }
-                Files.copy(reader, extractedLibFile, StandardCopyOption.REPLACE_EXISTING);
-            } finally {
-                // Delete the extracted lib file on JVM exit.
-                extractedLibFile.toFile().deleteOnExit();
-                extractedLckFile.toFile().deleteOnExit();
+                lookupTimer.end(0, nativeLibraryFilePath, true);
+            }
+
+            return cacheLibraryFile(
+                    () -> openNativeLibrary(nativeLibraryFilePath),
+                    nativeLibraryFilePath,
+                    digest,
+                    indexEntry,
+                    cacheFolder.toPath().resolve(digest).resolve(libraryFileName),
+                    trace);
+        } catch (IOException e) {
+            logger.error("Unexpected IOException", e);
+            return null;
+        }
+    }
+
+    /** Contents of a library to cache, opened once the cache entry needs writing. */
+    private interface LibrarySource {
+        /** @return The contents, or null if the library is gone. */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Takes a lease on a cache entry and makes sure it holds an intact copy of the library, writing
+     * it unless a previous run or another JVM already did.
+     *
+     * @param source Contents of the library.
+     * @param sourceName Name of the contents for messages, e.g. the resource path.
+     * @param digest SHA-256 of the library, naming its cache entry.
+     * @param indexEntry Entry of the build-time index, or null.
+     * @param extractedLibFile Location of the library in its cache entry.
+     * @return The cached library file.
+     */
+    private static Path cacheLibraryFile(
+            LibrarySource source,
+            String sourceName,
+            String digest,
+            NativeLibIndex.Entry indexEntry,
+            Path extractedLibFile,
+            NativeLibTrace trace)
+            throws IOException, FileException {
+        try {
+            return cacheLibraryFileOnce(
+                    source, sourceName, digest, indexEntry, extractedLibFile, trace);
+        } catch (NoSuchFileException e) {
+            // the entry was evicted while this JVM was waiting for its lease; start over
+            logger.debug("Cache entry of {} evicted meanwhile, retrying", extractedLibFile, e);
+            NativeLibLocks.releaseLease(extractedLibFile);
+            return cacheLibraryFileOnce(
+                    source, sourceName, digest, indexEntry, extractedLibFile, trace);
+        }
+    }
+
+    private static Path cacheLibraryFileOnce(
+            LibrarySource source,
+            String sourceName,
+            String digest,
+            NativeLibIndex.Entry indexEntry,
+            Path extractedLibFile,
+            NativeLibTrace trace)
+            throws IOException, FileException {
+        Path entryFolder = extractedLibFile.getParent();
+
+        // Hold a lease for as long as this JVM runs, so no other JVM evicts the entry
+        NativeLibLocks.acquireLease(extractedLibFile);
+
+        // Reuse a copy extracted by a previous run if its contents are still intact
+        if (isValidCopy(extractedLibFile, digest, indexEntry, trace)) {
+            logger.debug("Reusing cached native library {}", extractedLibFile);
+            NativeLibCacheCleaner.touch(entryFolder);
+            trace.cached();
+            return extractedLibFile;
+        }
+
+        // Only one process extracts an entry; the others wait here and reuse its copy
+        Closeable extractionLock = NativeLibLocks.lockExtraction(entryFolder);
+        try {
+            if (isValidCopy(extractedLibFile, digest, indexEntry, trace)) {
+                logger.debug(
+                        "Reusing native library extracted by another JVM {}", extractedLibFile);
+                NativeLibCacheCleaner.touch(entryFolder);
+                trace.cached();
+                return extractedLibFile;
+            }
+            if (Files.exists(extractedLibFile)) {
+                logger.warn("Replacing corrupted cached native library {}", extractedLibFile);
             }
+            writeLibraryFile(source, sourceName, digest, extractedLibFile, trace);
+        } finally {
+            extractionLock.close();
+        }
+        return extractedLibFile;
+    }
+
+    /**
+     * Checks whether a copy of the library exists at the given location and matches the expected
+     * digest.
+     */
+    private static boolean isValidCopy(
+            Path extractedLibFile,
+            String digest,
+            NativeLibIndex.Entry indexEntry,
+            NativeLibTrace trace)
+            throws IOException {
+        if (!Files.exists(extractedLibFile)) {
+            return false;
+        }
+        if (digest.equals(verifiedFiles.get(extractedLibFile))) {
+            return true;
+        }
+        // leased by another class loader of this JVM, which recorded its verification
+        if (NativeLibLocks.hasSharedLease(extractedLibFile)
+                && NativeLibFiles.isMarkedVerified(extractedLibFile, digest)) {
+            logger.debug("Native library {} verified by another class loader", extractedLibFile);
+            verifiedFiles.put(extractedLibFile, digest);
+            return true;
+        }
+        NativeLibTrace.PhaseTimer verifyTimer = trace.begin(NativeLibraryInfo.Phase.VERIFICATION);
+        long size = Files.size(extractedLibFile);
+        boolean valid =
+                (indexEntry == null || size == indexEntry.getSize())
+                        && digest.equals(NativeLibFiles.sha256sum(extractedLibFile));
+        verifyTimer.end(size, extractedLibFile, valid);
+        if (valid) {
+            markVerified(extractedLibFile, digest);
+        }
+        return valid;
+    }
+
+    /**
+     * Remembers a verified library file for this class loader, and records the verification next
+     * to the file for the other class loaders of the JVM, which do not share this class' state.
+     */
+    private static void markVerified(Path libFile, String digest) {
+        verifiedFiles.put(libFile, digest);
+        try {
+            NativeLibFiles.markVerified(libFile, digest);
+        } catch (IOException e) {
+            logger.debug("Could not record the verification of {}", libFile, e);
+        }
+    }
+
+    /**
+     * Extracts the library into a temporary file first and publishes it with a rename, so that
+     * other JVMs sharing the cache never observe a partially written library. Called while holding
+     * the extraction lock of the cache entry.
+     */
+    private static void writeLibraryFile(
+            LibrarySource source,
+            String sourceName,
+            String digest,
+            Path extractedLibFile,
+            NativeLibTrace trace)
+            throws IOException, FileException {
+        Path entryFolder = extractedLibFile.getParent();
+        String libraryFileName = extractedLibFile.getFileName().toString();
+        Path extractingLibFile = Files.createTempFile(entryFolder, libraryFileName, ".tmp");
+        try {
+            // Decompress, copy and hash the resource in a single pass
+            NativeLibTrace.PhaseTimer extractTimer =
+                    trace.begin(NativeLibraryInfo.Phase.EXTRACTION);
+            InputStream reader = source.open();
+            if (reader == null) {
+                extractTimer.end(0, extractingLibFile, false);
+                throw new FileException(
+                        String.format("Native library resource %s is gone", sourceName));
+            }
+            String copiedDigest = NativeLibFiles.copyWithDigest(reader, extractingLibFile);
+            long size = Files.size(extractingLibFile);
+            trace.extracted(size);
+            extractTimer.end(size, extractedLibFile, true);
 
             // Set executable (x) flag to enable Java to load the native library
-            extractedLibFile.toFile().setReadable(true);
-            extractedLibFile.toFile().setWritable(true, true);
-            extractedLibFile.toFile().setExecutable(true);
+            extractingLibFile.toFile().setReadable(true);
+            extractingLibFile.toFile().setWritable(true, true);
+            extractingLibFile.toFile().setExecutable(true);
 
             // Check whether the contents are properly copied from the resource folder
-            {
-                try (InputStream nativeIn = getResourceAsStream(nativeLibraryFilePath);
-                     InputStream extractedLibIn = Files.newInputStream(extractedLibFile)) {
-                    if (!contentsEquals(nativeIn, extractedLibIn)) {
-                        throw new FileException(
-                                String.format(
-                                        "Failed to write a native library file at %s",
-                                        extractedLibFile));
-                    }
-                }
+            NativeLibTrace.PhaseTimer verifyTimer =
+                    trace.begin(NativeLibraryInfo.Phase.VERIFICATION);
+            boolean verified =
+                    digest.equals(copiedDigest)
+                            && digest.equals(NativeLibFiles.sha256sum(extractingLibFile));
+            verifyTimer.end(size, extractedLibFile, verified);
+            if (!verified) {
+                throw new FileException(
+                        String.format(
+                                "Failed to write a native library file at %s",
+                                extractingLibFile));
             }
-            return loadNativeLibrary(targetFolder, extractedLibFileName);
+
+            publish(extractingLibFile, extractedLibFile);
+            markVerified(extractedLibFile, digest);
+            NativeLibCacheCleaner.touch(entryFolder);
+        } finally {
+            Files.deleteIfExists(extractingLibFile);
+        }
+    }
+
+    /**
+     * Moves a fully written library file to its final location in the cache, replacing a corrupted
+     * copy if there is one.
+     */
+    static void publish(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Gives this class loader its own instance of a cached library that another class loader of
+     * the JVM already loaded, since the JVM refuses to load the same file twice. The instance is a
+     * hard link to the cached file, or a copy where the file system has no hard links, named after
+     * the class loader, e.g. libmath.loader-2.so, next to the cached file. It is reused by later
+     * JVMs and evicted together with its cache entry.
+     *
+     * <p>The dynamic linker of glibc maps a hard link to an already loaded file only once, so the
+     * class loaders share the static data of the library; copies get their own.
+     *
+     * @param instanceId Name of the instance, e.g. loader-2.
+     * @return The instance for this class loader.
+     */
+    private static Path linkForClassLoader(
+            String nativeLibBaseName,
+            Path extractedLibFile,
+            String instanceId,
+            NativeLibTrace trace)
+            throws IOException {
+        Path instance =
+                extractedLibFile.resolveSibling(
+                        LibraryLoaderUtil.getNativeLibName(nativeLibBaseName + "." + instanceId));
+        linkForClassLoader(extractedLibFile, instance, trace);
+        return instance;
+    }
+
+    /** Links or copies the cached library to the given instance, unless it is there already. */
+    private static void linkForClassLoader(
+            Path extractedLibFile, Path instance, NativeLibTrace trace) throws IOException {
+        String digest = extractedLibFile.getParent().getFileName().toString();
+        if (Files.exists(instance)
+                && (Files.isSameFile(instance, extractedLibFile)
+                        || isValidCopy(instance, digest, null, trace))) {
+            return;
+        }
+        Path linkingLibFile =
+                Files.createTempFile(
+                        instance.getParent(), instance.getFileName().toString(), ".tmp");
+        try {
+            Files.delete(linkingLibFile);
+            try {
+                Files.createLink(linkingLibFile, extractedLibFile);
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.debug("Could not link {}, copying it", extractedLibFile, e);
+                NativeLibTrace.PhaseTimer extractTimer =
+                        trace.begin(NativeLibraryInfo.Phase.EXTRACTION);
+                Files.copy(extractedLibFile, linkingLibFile);
+                long size = Files.size(linkingLibFile);
+                trace.extracted(size);
+                extractTimer.end(size, instance, true);
+                linkingLibFile.toFile().setReadable(true);
+                linkingLibFile.toFile().setExecutable(true);
+            }
+            publish(linkingLibFile, instance);
+        } finally {
+            Files.deleteIfExists(linkingLibFile);
+        }
+    }
+
+    /**
+     * Provides a file of the library that no class loader has loaded yet, for the isolated class
+     * loader of a {@link SwappableNativeLibrary} version. The library is copied into the
+     * content-addressed cache, from the given file or from the jar, and linked there under the
+     * given instance name, e.g. libmath.swap-1.so.
+     *
+     * @param libFile The library to load, or null for the one bundled for the current OS.
+     * @param instanceId Name of the instance. If another class loader already loaded it, the
+     *     caller fails to load it and tries another name.
+     * @return The file to load.
+     */
+    static Path extractIsolatedInstance(String nativeLibBaseName, Path libFile, String instanceId)
+            throws IOException, FileException {
+        NativeLibTrace trace = new NativeLibTrace(nativeLibBaseName);
+        Path extractedLibFile;
+        if (libFile == null) {
+            extractedLibFile = extractLibraryFile(nativeLibBaseName, trace);
+            if (extractedLibFile == null) {
+                throw new NativeLibraryNotFoundException(
+                        String.format(
+                                "No native library %s bundled for os.name=%s, os.arch=%s",
+                                nativeLibBaseName, OSInfo.getOSName(), OSInfo.getArchName()));
+            }
+        } else {
+            String digest = NativeLibFiles.sha256sum(libFile);
+            extractedLibFile =
+                    cacheLibraryFile(
+                            () -> Files.newInputStream(libFile),
+                            libFile.toString(),
+                            digest,
+                            null,
+                            getCacheDir(nativeLibBaseName)
+                                    .getAbsoluteFile()
+                                    .toPath()
+                                    .resolve(digest)
+                                    .resolve(LibraryLoaderUtil.getNativeLibName(nativeLibBaseName)),
+                            trace);
+        }
+        return linkForClassLoader(nativeLibBaseName, extractedLibFile, instanceId, trace);
+    }
+
+    /**
+     * Opens a bundled library, decompressing it if the build stored it compressed.
+     *
+     * @return The uncompressed contents of the library, or null if it is not bundled.
+     */
+    private static InputStream openNativeLibrary(String nativeLibraryFilePath) throws IOException {
+        NativeLibIndex.Entry indexEntry = NativeLibIndex.get(nativeLibraryFilePath);
+        if (indexEntry == null || !indexEntry.isCompressed()) {
+            return getResourceAsStream(nativeLibraryFilePath);
+        }
+        InputStream compressed =
+                getResourceAsStream(nativeLibraryFilePath + NativeLibIndex.GZIP_SUFFIX);
+        if (compressed == null) {
+            return null;
+        }
+        try {
+            return new GZIPInputStream(compressed, NativeLibFiles.BUFFER_SIZE);
         } catch (IOException e) {
-            logger.error("Unexpected IOException", e);
-            return false;
+            compressed.close();
+            throw e;
         }
     }
 
@@ -230,6 +1011,15 @@ public class NativeLibLoader {
         if (url == null) {
             return null;
         }
+        // jars on disk, nested ones included, are read without parsing them again
+        try {
+            InputStream in = NativeLibJars.open(url);
+            if (in != null) {
+                return in;
+            }
+        } catch (IOException e) {
+            logger.debug("Could not read {} directly", url, e);
+        }
         try {
             URLConnection connection = url.openConnection();
             connection.setUseCaches(false);
@@ -245,34 +1035,163 @@ public class NativeLibLoader {
      *
      * @param path Path of the native library.
      * @param name Name of the native library.
-     * @return True for successfully loading; false otherwise.
+     * @param trace Trace recording the load.
+     * @return True for successfully loading; false otherwise, also when the file was loaded by
+     *     another class loader.
      */
-    private static boolean loadNativeLibrary(String path, String name) {
-        File libPath = new File(path, name);
-        if (libPath.exists()) {
+    private static boolean loadNativeLibrary(String path, String name, NativeLibTrace trace) {
+        return load(new File(path, name), trace) == LoadResult.LOADED;
+    }
+
+    private static LoadResult load(File libPath, NativeLibTrace trace) {
+        if (!libPath.exists()) {
+            return LoadResult.FAILED;
+        }
+        String absolutePath = libPath.getAbsolutePath();
+        NativeLibTrace.PhaseTimer loadTimer = trace.begin(NativeLibraryInfo.Phase.LOAD);
+        try {
+            System.load(absolutePath);
+            loadTimer.end(0, absolutePath, true);
+            return LoadResult.LOADED;
+        } catch (UnsatisfiedLinkError e) {
+            loadTimer.end(0, absolutePath, false);
+            if (isLoadedElsewhere(e)) {
+                logger.debug("Not loading {}: loaded by another class loader", absolutePath);
+                return LoadResult.LOADED_BY_ANOTHER_CLASS_LOADER;
+            }
+            logger.error(
+                    "Failed to load native library: {}. osinfo: {}",
+                    libPath.getName(),
+                    OSInfo.getNativeLibFolderPathForCurrentOS(),
+                    e);
+            return LoadResult.FAILED;
+        }
+    }
+
+    /** @return True if System.load failed because another class loader loaded the file. */
+    static boolean isLoadedElsewhere(UnsatisfiedLinkError e) {
+        return e.getMessage() != null && e.getMessage().contains(LOADED_ELSEWHERE);
+    }
 
+    /**
+     * Loads an instance of the cached library, since another class loader of the JVM loaded the
+     * file itself. The instances are tried in order, loader-1 first, until one is not loaded by
+     * yet another class loader.
+     *
+     * @return The loaded instance, or null if none could be loaded.
+     */
+    private static Path loadInstance(
+            String nativeLibBaseName, Path extractedLibFile, NativeLibTrace trace) {
+        for (int i = 1; i <= MAX_INSTANCES; i++) {
+            Path instance;
             try {
-                System.load(new File(path, name).getAbsolutePath());
-                return true;
-            } catch (UnsatisfiedLinkError e) {
-                logger.error(
-                        "Failed to load native library: {}. osinfo: {}",
-                        name,
-                        OSInfo.getNativeLibFolderPathForCurrentOS(),
-                        e);
-                return false;
+                instance =
+                        linkForClassLoader(
+                                nativeLibBaseName, extractedLibFile, "loader-" + i, trace);
+            } catch (IOException e) {
+                logger.error("Could not create an instance of {}", extractedLibFile, e);
+                return null;
+            }
+            LoadResult result = load(instance.toFile(), trace);
+            if (result == LoadResult.LOADED) {
+                return instance;
+            }
+            if (result == LoadResult.FAILED) {
+                return null;
             }
+        }
+        logger.error("All {} instances of {} are loaded", MAX_INSTANCES, extractedLibFile);
+        return null;
+    }
 
-        } else {
-            return false;
+    /**
+     * Copies the library bundled for the current OS into an anonymous memory file and loads it
+     * from there, so nothing is written to the temp folder.
+     *
+     * @return The loaded memory file, or null if the library is not bundled or could not be
+     *     loaded from memory.
+     */
+    private static Path loadNativeLibraryFromMemory(
+            String nativeLibBaseName, NativeLibTrace trace) {
+        String nativeLibName = LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
+        String nativeLibraryFilePath = null;
+        for (String candidate : getNativeLibResourcePaths(nativeLibBaseName)) {
+            if (LibraryLoaderUtil.hasNativeLib(candidate, nativeLibName)) {
+                nativeLibraryFilePath = candidate + "/" + nativeLibName;
+                break;
+            }
+        }
+        if (nativeLibraryFilePath == null) {
+            return null;
         }
+        NativeLibIndex.Entry indexEntry = NativeLibIndex.get(nativeLibraryFilePath);
+        try (InputStream nativeIn = openNativeLibrary(nativeLibraryFilePath)) {
+            if (nativeIn == null) {
+                return null;
+            }
+            Path memFile =
+                    MemfdLoader.copyToMemory(
+                            nativeIn,
+                            nativeLibName,
+                            indexEntry == null ? null : indexEntry.getDigest(),
+                            trace);
+            if (loadNativeLibrary(
+                    memFile.getParent().toString(), memFile.getFileName().toString(), trace)) {
+                return memFile;
+            }
+            // not loaded, so the JDK does not remember the path and the descriptor can go
+            MemfdLoader.close(memFile);
+        } catch (IOException e) {
+            logger.warn("Failed to load native library {} from memory", nativeLibBaseName, e);
+        }
+        return null;
     }
 
-    private static boolean loadNativeLibraryJdk(String nativeLibBaseName) {
+    /**
+     * Resolves the folder holding the library within a folder written by {@link #main(String[])},
+     * picking the best build for the current platform from its descriptor. The copies were
+     * verified when they were written, so only their size is checked here.
+     *
+     * @return The folder holding the library, or the given folder if it has no descriptor.
+     */
+    private static String resolveLibPath(String nativeLibPath, String nativeLibBaseName) {
+        String nativeLibName = LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
+        Path indexFile = Paths.get(nativeLibPath, EXTRACTED_INDEX);
+        if (!Files.isRegularFile(indexFile)) {
+            return nativeLibPath;
+        }
+        Properties index = new Properties();
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            index.load(in);
+        } catch (IOException e) {
+            logger.warn("Could not read {}", indexFile, e);
+            return nativeLibPath;
+        }
+        Map<String, NativeLibIndex.Entry> entries = NativeLibIndex.parse(index);
+        String root = LibraryLoaderUtil.getNativeLibResourceRoot() + "/";
+        for (String resourcePath : getNativeLibResourcePaths(nativeLibBaseName)) {
+            String path = resourcePath.substring(root.length()) + "/" + nativeLibName;
+            NativeLibIndex.Entry entry = entries.get(path);
+            if (entry == null) {
+                continue;
+            }
+            File libFile = new File(nativeLibPath, path);
+            if (libFile.length() == entry.getSize()) {
+                return libFile.getParent();
+            }
+            logger.warn("Ignoring {}: its size does not match {}", libFile, indexFile);
+        }
+        return nativeLibPath;
+    }
+
+    private static boolean loadNativeLibraryJdk(String nativeLibBaseName, NativeLibTrace trace) {
+        NativeLibTrace.PhaseTimer loadTimer = trace.begin(NativeLibraryInfo.Phase.LOAD);
         try {
             System.loadLibrary(nativeLibBaseName);
+            loadTimer.end(0, nativeLibBaseName, true);
             return true;
         } catch (UnsatisfiedLinkError e) {
+            loadTimer.end(0, nativeLibBaseName, false);
             logger.error("Failed to load native library through System.loadLibrary", e);
             return false;
         }
@@ -281,43 +1200,86 @@ public class NativeLibLoader {
     /**
      * Loads SQLite native library using given path and name of the library.
      *
+     * @param trace Trace of the load so far, holding the library if it was already extracted.
+     * @return Where the library was loaded from and how long it took.
      * @throws
      */
-    private static void loadNativeLibrary(String nativeLibBaseName) throws FileException {
-        if (extracted.getOrDefault(nativeLibBaseName, false)) {
-            return;
-        }
+    private static NativeLibraryInfo loadNativeLibrary(
+            String nativeLibBaseName, NativeLibTrace trace) throws FileException {
+        List<String> triedPaths = trace.getTriedPaths();
 
-        List<String> triedPaths = new LinkedList<>();
+        // A library linked into the executable, e.g. a GraalVM native image built with the
+        // native-image-static profile, needs neither lookup nor extraction
+        if (Boolean.getBoolean(nativeLibBaseName + ".lib.builtin")
+                && loadNativeLibraryJdk(nativeLibBaseName, trace)) {
+            return trace.loaded(NativeLibraryInfo.Source.BUILTIN, null);
+        }
 
         // Try loading library from libraryBaseName.lib.path library path */
         String nativeLibPath = System.getProperty(nativeLibBaseName + ".lib.path");
 
         String nativeLibName = LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
         if (nativeLibPath != null) {
-            if (loadNativeLibrary(nativeLibPath, nativeLibName)) {
-                extracted.put(nativeLibBaseName, true);
-                return;
+            String nativeLibFolder = resolveLibPath(nativeLibPath, nativeLibBaseName);
+            if (loadNativeLibrary(nativeLibFolder, nativeLibName, trace)) {
+                return trace.loaded(
+                        NativeLibraryInfo.Source.LIB_PATH,
+                        new File(nativeLibFolder, nativeLibName).getAbsolutePath());
             } else {
                 triedPaths.add(nativeLibPath);
             }
         }
 
-        // Load the os-dependent library from the jar file
-        nativeLibPath = LibraryLoaderUtil.getNativeLibResourcePath();
-        boolean hasNativeLib =
-                LibraryLoaderUtil.hasNativeLib(nativeLibPath, nativeLibName);
+        // Compile the bundled sources for the CPU of this host, see NativeLibHostBuild
+        if (trace.extractedLibFile == null && NativeLibHostBuild.isEnabled(nativeLibBaseName)) {
+            Path hostLibFile = NativeLibHostBuild.build(nativeLibBaseName, trace);
+            if (hostLibFile != null) {
+                LoadResult result = load(hostLibFile.toFile(), trace);
+                if (result == LoadResult.LOADED) {
+                    trace.extractedLibFile = hostLibFile;
+                    return trace.loaded(
+                            NativeLibraryInfo.Source.HOST_BUILD, hostLibFile.toString());
+                }
+                // a build loaded by another class loader is fine, this one uses the prebuilt
+                if (result == LoadResult.FAILED) {
+                    NativeLibHostBuild.markFailed(hostLibFile, "Could not be loaded");
+                }
+                triedPaths.add(hostLibFile.toString());
+            }
+            logger.info("Using the prebuilt native library {}", nativeLibBaseName);
+        }
 
-        if (hasNativeLib) {
-            // temporary library folder
-            String tempFolder = getTempDir(nativeLibBaseName).getAbsolutePath();
+        // Load the os-dependent library from the jar file, straight from memory if possible
+        if (trace.extractedLibFile == null && MemfdLoader.isEnabled(nativeLibBaseName)) {
+            Path memFile = loadNativeLibraryFromMemory(nativeLibBaseName, trace);
+            if (memFile != null) {
+                return trace.loaded(NativeLibraryInfo.Source.MEMORY, memFile.toString());
+            }
+        }
+        if (trace.extractedLibFile == null) {
             // Try extracting the library from jar
-            if (extractAndLoadLibraryFile(
-                    nativeLibPath, nativeLibName, tempFolder)) {
-                extracted.put(nativeLibBaseName, true);
-                return;
+            trace.extractedLibFile = extractLibraryFile(nativeLibBaseName, trace);
+        }
+        Path extractedLibFile = trace.extractedLibFile;
+        if (extractedLibFile != null) {
+            LoadResult result = load(extractedLibFile.toFile(), trace);
+            if (result == LoadResult.LOADED_BY_ANOTHER_CLASS_LOADER) {
+                // e.g. by another application of the server
+                Path instance = loadInstance(nativeLibBaseName, extractedLibFile, trace);
+                if (instance != null) {
+                    trace.extractedLibFile = instance;
+                    extractedLibFile = instance;
+                    result = LoadResult.LOADED;
+                }
+            }
+            if (result == LoadResult.LOADED) {
+                return trace.loaded(
+                        trace.isCached()
+                                ? NativeLibraryInfo.Source.CACHED
+                                : NativeLibraryInfo.Source.EXTRACTED,
+                        extractedLibFile.toString());
             } else {
-                triedPaths.add(nativeLibPath);
+                triedPaths.add(LibraryLoaderUtil.getNativeLibResourcePath(nativeLibName));
             }
         }
 
@@ -327,21 +1289,20 @@ public class NativeLibLoader {
             if (ldPath.isEmpty()) {
                 continue;
             }
-            if (loadNativeLibrary(ldPath, nativeLibName)) {
-                extracted.put(nativeLibBaseName, true);
-                return;
+            if (loadNativeLibrary(ldPath, nativeLibName, trace)) {
+                return trace.loaded(
+                        NativeLibraryInfo.Source.JAVA_LIBRARY_PATH,
+                        new File(ldPath, nativeLibName).getAbsolutePath());
             } else {
                 triedPaths.add(ldPath);
             }
         }
 
         // As an ultimate last resort, try loading through System.loadLibrary
-        if (loadNativeLibraryJdk(nativeLibBaseName)) {
-            extracted.put(nativeLibBaseName, true);
-            return;
+        if (loadNativeLibraryJdk(nativeLibBaseName, trace)) {
+            return trace.loaded(NativeLibraryInfo.Source.SYSTEM, null);
         }
 
-        extracted.put(nativeLibBaseName, false);
         throw new NativeLibraryNotFoundException(
                 String.format(
                         "No native library found for os.name=%s, os.arch=%s, paths=[%s]",
@@ -379,6 +1340,125 @@ public class NativeLibLoader {
         return VersionHolder.VERSION;
     }
 
+    /**
+     * Extracts and verifies the bundled libraries of the current platform, or of the given
+     * platforms, into a folder, e.g. while building a container image. The folder also receives a
+     * native-index.properties descriptor: with libraryBaseName.lib.path pointing at the folder, the
+     * loader picks the library for the running platform from it and loads it without extracting
+     * or hashing anything.
+     *
+     * <p>usage: NativeLibLoader &lt;target directory&gt; [&lt;os&gt;/&lt;arch&gt; ...]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: NativeLibLoader <target directory> [<os>/<arch> ...]");
+            System.exit(1);
+        }
+        if (!NativeLibIndex.isAvailable()) {
+            System.err.println("This jar was built without a native library index");
+            System.exit(1);
+        }
+        Path targetDir = Paths.get(args[0]);
+        List<String> platforms =
+                args.length > 1
+                        ? Arrays.asList(args).subList(1, args.length)
+                        : Collections.singletonList(OSInfo.getNativeLibFolderPathForCurrentOS());
+
+        String root = LibraryLoaderUtil.getNativeLibResourceRoot() + "/";
+        List<NativeLibIndex.Entry> written = new ArrayList<>();
+        for (NativeLibIndex.Entry entry : new TreeMap<>(NativeLibIndex.entries()).values()) {
+            String path = entry.getPath();
+            if (platforms.stream().noneMatch(platform -> path.startsWith(platform + "/"))) {
+                continue;
+            }
+            Path libFile = targetDir.resolve(path);
+            Files.createDirectories(libFile.getParent());
+            Path extractingLibFile =
+                    Files.createTempFile(
+                            libFile.getParent(), libFile.getFileName().toString(), ".tmp");
+            try {
+                InputStream nativeIn = openNativeLibrary(root + path);
+                if (nativeIn == null) {
+                    throw new IOException("Native library resource " + path + " is gone");
+                }
+                String digest = NativeLibFiles.copyWithDigest(nativeIn, extractingLibFile);
+                if (!digest.equals(entry.getDigest())) {
+                    throw new IOException(
+                            String.format(
+                                    "%s has SHA-256 %s, expected %s",
+                                    path, digest, entry.getDigest()));
+                }
+                extractingLibFile.toFile().setReadable(true, false);
+                extractingLibFile.toFile().setExecutable(true, false);
+                publish(extractingLibFile, libFile);
+            } finally {
+                Files.deleteIfExists(extractingLibFile);
+            }
+            written.add(
+                    new NativeLibIndex.Entry(
+                            path,
+                            entry.getSize(),
+                            entry.getDigest(),
+                            entry.getDependencies(),
+                            false));
+            System.out.printf("Extracted %s%n", libFile);
+        }
+        if (written.isEmpty()) {
+            System.err.println("No native libraries bundled for " + platforms);
+            System.exit(1);
+        }
+        NativeLibIndex.write(
+                targetDir.resolve(EXTRACTED_INDEX),
+                written,
+                "Native libraries extracted by NativeLibLoader");
+        System.out.printf(
+                "Extracted %d native libraries into %s, load them with -D<name>.lib.path=%s%n",
+                written.size(), targetDir, targetDir.toAbsolutePath());
+    }
+
+    /**
+     * Extracts the libraries of {@link #initialize(Collection)} in parallel, on daemon threads that
+     * end when idle.
+     */
+    private static final class ExtractorHolder {
+        private static final ExecutorService EXECUTOR = createExecutor();
+
+        private static ExecutorService createExecutor() {
+            int threads = Runtime.getRuntime().availableProcessors();
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor =
+                    new ThreadPoolExecutor(
+                            threads,
+                            threads,
+                            10,
+                            TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(),
+                            r -> {
+                                Thread thread =
+                                        new Thread(
+                                                r, "native-lib-extract-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /** Checks once whether org.crac, an optional dependency, is on the class path. */
+    private static final class CracHolder {
+        private static final boolean AVAILABLE = isAvailable();
+
+        private static boolean isAvailable() {
+            try {
+                Class.forName("org.crac.Core", false, NativeLibLoader.class.getClassLoader());
+                return true;
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+        }
+    }
+
     /**
      * This class will load the version from resources during <clinit>. By initializing this at
      * build-time in native-image, the resources do not need to be included in the native
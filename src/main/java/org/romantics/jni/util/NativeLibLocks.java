@@ -0,0 +1,350 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * File locks coordinating the JVMs that share a content-addressed cache entry.
+ *
+ * <ul>
+ *   <li>A lease is a shared lock on the &lt;library&gt;.lck file next to the library, held by every
+ *       JVM that loaded the library for as long as it runs. The operating system drops the lock
+ *       when the process dies, so the number of holders is an exact reference count.
+ *   <li>The extraction lock is an exclusive lock on .extract.lck, so that only one process writes
+ *       a given entry while the others wait and then load the published file.
+ *   <li>Evicting an entry requires an exclusive lock on all its lock files, which is only granted
+ *       when no process holds a lease or is extracting.
+ * </ul>
+ *
+ * <p>A process waiting for a lock may have opened a lock file just before it was evicted. The
+ * evictor therefore marks every lock file with a byte, still holding its lock, before deleting it;
+ * a process that then gets the lock on a non-empty file knows it is gone and starts over.
+ *
+ * <p>File locks belong to the process, but every class loader defining this class has its own
+ * copy of it. A copy trying to lock a file another copy holds gets an {@link
+ * OverlappingFileLockException}: for a lease it means the JVM holds one already, for the
+ * extraction lock that another class loader is extracting, so the copy waits. Closing any channel
+ * of a file releases every lock the process holds on it, so such a channel is kept open instead.
+ */
+final class NativeLibLocks {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLibLocks.class);
+
+    static final String LOCK_EXT = ".lck";
+    private static final String EXTRACT_LOCK = ".extract" + LOCK_EXT;
+    private static final int ATTEMPTS = 3;
+    /** Written into a lock file by the eviction; live lock files are empty. */
+    private static final byte[] EVICTED = {1};
+
+    /** Time between attempts to lock a file another class loader of this JVM holds. */
+    private static final long OVERLAP_RETRY_MILLIS = 10;
+
+    /** Leases held by this class loader, keyed by library file. */
+    private static final ConcurrentMap<Path, FileLock> leases = new ConcurrentHashMap<>();
+    /** Lease files whose lease another class loader holds, kept open, see the class comment. */
+    private static final ConcurrentMap<Path, FileChannel> sharedLeases = new ConcurrentHashMap<>();
+    /** Lock files held by another class loader that an eviction opened, kept open likewise. */
+    private static final List<FileChannel> unclosed = new ArrayList<>();
+    /** Serializes the threads of this class loader, since file locks are held per process. */
+    private static final ConcurrentMap<Path, ReentrantLock> threadLocks =
+            new ConcurrentHashMap<>();
+
+    private NativeLibLocks() {}
+
+    /**
+     * Takes a lease on the library file, creating its folder if needed. The lease is kept until the
+     * JVM exits. Nothing is taken if another class loader of this JVM holds the lease.
+     */
+    static void acquireLease(Path libFile) throws IOException {
+        if (leases.containsKey(libFile) || sharedLeases.containsKey(libFile)) {
+            return;
+        }
+        ReentrantLock lock = threadLock(libFile);
+        lock.lock();
+        try {
+            if (leases.containsKey(libFile) || sharedLeases.containsKey(libFile)) {
+                return;
+            }
+            Path lckFile = leaseFile(libFile);
+            for (int attempt = 1; ; attempt++) {
+                Files.createDirectories(libFile.getParent());
+                FileChannel channel;
+                try {
+                    channel =
+                            FileChannel.open(
+                                    lckFile,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+                } catch (NoSuchFileException e) {
+                    // the folder was evicted in the meantime
+                    if (attempt >= ATTEMPTS) {
+                        throw e;
+                    }
+                    continue;
+                }
+                try {
+                    FileLock lease = channel.lock(0, Long.MAX_VALUE, true);
+                    // the entry may have been evicted between opening and locking the file
+                    if (!isEvicted(channel, lckFile)) {
+                        leases.put(libFile, lease);
+                        return;
+                    }
+                } catch (OverlappingFileLockException e) {
+                    // leased by another class loader of this JVM
+                    sharedLeases.put(libFile, channel);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                channel.close();
+                if (attempt >= ATTEMPTS) {
+                    throw new IOException("Could not take a lease on " + lckFile);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases every lease of this JVM, e.g. before a CRaC checkpoint, which must not hold open
+     * files.
+     *
+     * @return The library files that were leased.
+     */
+    static List<Path> releaseLeases() {
+        List<Path> released = new ArrayList<>();
+        for (Path libFile : new ArrayList<>(leases.keySet())) {
+            FileLock lease = leases.remove(libFile);
+            if (lease != null) {
+                closeQuietly(lease.channel());
+                released.add(libFile);
+            }
+        }
+        // the other class loaders release theirs as well
+        for (Path libFile : new ArrayList<>(sharedLeases.keySet())) {
+            FileChannel channel = sharedLeases.remove(libFile);
+            if (channel != null) {
+                closeQuietly(channel);
+                released.add(libFile);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Releases the lease of this JVM on the library file, e.g. when its cache entry turned out to
+     * be gone, so that the next {@link #acquireLease(Path)} takes it again.
+     */
+    static void releaseLease(Path libFile) {
+        FileLock lease = leases.remove(libFile);
+        if (lease != null) {
+            closeQuietly(lease.channel());
+        }
+        closeQuietly(sharedLeases.remove(libFile));
+    }
+
+    /** @return True if this class loader holds a lease on the library file. */
+    static boolean hasLease(Path libFile) {
+        return leases.containsKey(libFile);
+    }
+
+    /**
+     * @return True if another class loader of this JVM holds the lease on the library file, so
+     *     the file has not been replaced since that class loader leased it.
+     */
+    static boolean hasSharedLease(Path libFile) {
+        return sharedLeases.containsKey(libFile);
+    }
+
+    static Path leaseFile(Path libFile) {
+        return libFile.resolveSibling(libFile.getFileName() + LOCK_EXT);
+    }
+
+    /**
+     * Blocks until this process is the only one extracting into the given cache entry, creating
+     * the entry folder if needed.
+     *
+     * @return The lock, to be closed once the library is published.
+     */
+    static Closeable lockExtraction(Path entryFolder) throws IOException {
+        // file locks are held per process, so the threads of this JVM take turns first
+        ReentrantLock lock = threadLock(entryFolder);
+        lock.lock();
+        try {
+            Path lckFile = entryFolder.resolve(EXTRACT_LOCK);
+            for (int attempt = 1; ; attempt++) {
+                Files.createDirectories(entryFolder);
+                FileChannel channel;
+                try {
+                    channel =
+                            FileChannel.open(
+                                    lckFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                } catch (NoSuchFileException e) {
+                    // the folder was evicted in the meantime
+                    if (attempt >= ATTEMPTS) {
+                        throw e;
+                    }
+                    continue;
+                }
+                try {
+                    lockOrWait(channel);
+                    if (!isEvicted(channel, lckFile)) {
+                        return () -> {
+                            try {
+                                channel.close();
+                            } finally {
+                                lock.unlock();
+                            }
+                        };
+                    }
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                channel.close();
+                if (attempt >= ATTEMPTS) {
+                    throw new IOException("Could not lock " + lckFile);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the cache entry unless a process holds a lease on it or is extracting into it. The
+     * lock files are deleted while their exclusive locks are still held, see the class comment.
+     *
+     * @return True if the entry was deleted, false if it is in use.
+     */
+    static boolean evict(Path entryFolder) throws IOException {
+        List<Path> lckFiles;
+        try (Stream<Path> files = Files.list(entryFolder)) {
+            lckFiles =
+                    files.filter(file -> file.getFileName().toString().endsWith(LOCK_EXT))
+                            .collect(Collectors.toList());
+        }
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            for (Path lckFile : lckFiles) {
+                FileChannel channel;
+                try {
+                    channel =
+                            FileChannel.open(
+                                    lckFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    logger.debug("Could not open {}", lckFile, e);
+                    return false;
+                }
+                FileLock lock = null;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // held by this JVM, which closing the channel would release
+                    synchronized (unclosed) {
+                        unclosed.add(channel);
+                    }
+                    return false;
+                } catch (IOException e) {
+                    logger.debug("Could not lock {}", lckFile, e);
+                }
+                channels.add(channel);
+                if (lock == null) {
+                    return false;
+                }
+            }
+
+            // the libraries first, then the lock files, marked as evicted
+            try (Stream<Path> files = Files.list(entryFolder)) {
+                for (Path file :
+                        (Iterable<Path>)
+                                files.filter(file -> !lckFiles.contains(file))::iterator) {
+                    Files.delete(file);
+                }
+            }
+            for (int i = 0; i < lckFiles.size(); i++) {
+                channels.get(i).write(ByteBuffer.wrap(EVICTED), 0);
+                try {
+                    Files.delete(lckFiles.get(i));
+                } catch (IOException e) {
+                    // e.g. on Windows an open file cannot be deleted, retried once closed
+                    logger.debug("Could not delete {} while locked", lckFiles.get(i), e);
+                }
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                closeQuietly(channel);
+            }
+        }
+        for (Path lckFile : lckFiles) {
+            Files.deleteIfExists(lckFile);
+        }
+        Files.delete(entryFolder);
+        return true;
+    }
+
+    /**
+     * Locks the file exclusively, waiting for other processes and for the other class loaders of
+     * this JVM, which the operating system does not tell apart.
+     */
+    private static void lockOrWait(FileChannel channel) throws IOException {
+        while (true) {
+            try {
+                channel.lock();
+                return;
+            } catch (OverlappingFileLockException e) {
+                try {
+                    Thread.sleep(OVERLAP_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if the lock file just locked was marked or deleted by an eviction, so the lock
+     *     protects nothing.
+     */
+    private static boolean isEvicted(FileChannel channel, Path lckFile) throws IOException {
+        return channel.size() > 0 || !Files.exists(lckFile);
+    }
+
+    private static ReentrantLock threadLock(Path path) {
+        return threadLocks.computeIfAbsent(path, p -> new ReentrantLock());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.debug("Could not close {}", closeable, e);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Chooses the folder native libraries are extracted to. Unless libraryBaseName.lib.tmpdir is set,
+ * the candidates are $XDG_RUNTIME_DIR, /dev/shm, java.io.tmpdir and the user's cache folder
+ * ($XDG_CACHE_HOME or ~/.cache), in that order. On Linux, /proc/self/mountinfo tells which of
+ * them are RAM-backed (tmpfs, ramfs) and which are mounted noexec: the first RAM-backed candidate
+ * that allows executing libraries wins, then the first one that allows it at all. A noexec folder
+ * would only fail with an UnsatisfiedLinkError after the library has been copied.
+ *
+ * <p>A candidate is skipped if the library cache in it cannot be written, or if it has less usable
+ * space than the library plus {@link #HEADROOM}: a Docker /dev/shm holds only 64 MB.
+ *
+ * <p>The choice is made once per library and class loader.
+ *
+ * <p>The cache of a library in that folder, see {@link #getCacheDir(String)}, is private to the
+ * user: other users can neither read it nor replace a library between its verification and
+ * System.load.
+ */
+final class NativeLibTempDir {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLibTempDir.class);
+
+    private static final List<String> RAM_FILE_SYSTEMS = Arrays.asList("tmpfs", "ramfs");
+
+    /** Space left free in a candidate folder besides the library, in bytes. */
+    static final long HEADROOM = 16L * 1024 * 1024;
+
+    private static final ConcurrentMap<String, File> chosen = new ConcurrentHashMap<>();
+    /** Cache folders by library, checked once. */
+    private static final ConcurrentMap<String, File> cacheDirs = new ConcurrentHashMap<>();
+
+    private static final EnumSet<PosixFilePermission> OWNER_ONLY =
+            EnumSet.of(
+                    PosixFilePermission.OWNER_READ,
+                    PosixFilePermission.OWNER_WRITE,
+                    PosixFilePermission.OWNER_EXECUTE);
+
+    private NativeLibTempDir() {}
+
+    /** @return The folder to extract the given library to. */
+    static File get(String nativeLibBaseName) {
+        String tmpDir = System.getProperty(nativeLibBaseName + ".lib.tmpdir");
+        if (tmpDir != null) {
+            return new File(tmpDir);
+        }
+        return chosen.computeIfAbsent(nativeLibBaseName, NativeLibTempDir::choose);
+    }
+
+    /**
+     * @return The cache folder of the library, &lt;name&gt;-native-cache-&lt;user&gt; in the
+     *     extraction folder, created with mode 0700. If it exists but another user owns it or
+     *     others have access to it, a new folder for this JVM only is used instead.
+     */
+    static File getCacheDir(String nativeLibBaseName) {
+        return cacheDirs.computeIfAbsent(nativeLibBaseName, NativeLibTempDir::createCacheDir);
+    }
+
+    /** @return The name of the cache folder of the library for the current user. */
+    static String getCacheDirName(String nativeLibBaseName) {
+        String user = System.getProperty("user.name", "");
+        return nativeLibBaseName + "-native-cache-" + user.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static File createCacheDir(String nativeLibBaseName) {
+        Path tmpDir = get(nativeLibBaseName).toPath();
+        Path cacheDir = tmpDir.resolve(getCacheDirName(nativeLibBaseName));
+        try {
+            if (isPrivate(cacheDir)) {
+                return cacheDir.toFile();
+            }
+            // temporary folders are created with mode 0700
+            Path jvmCacheDir = Files.createTempDirectory(tmpDir, nativeLibBaseName + "-native-");
+            logger.warn(
+                    "Not using the native library cache {}: another user owns it or has access to"
+                            + " it. Extracting to {} instead",
+                    cacheDir,
+                    jvmCacheDir);
+            return jvmCacheDir.toFile();
+        } catch (IOException e) {
+            // the extraction reports the failure
+            logger.debug("Could not create the native library cache {}", cacheDir, e);
+            return cacheDir.toFile();
+        }
+    }
+
+    /**
+     * Creates the folder with mode 0700 unless it exists.
+     *
+     * @return True if the current user owns the folder and nobody else has access to it. Always
+     *     true where there are no POSIX permissions, e.g. on Windows with its per-user temp folder.
+     */
+    private static boolean isPrivate(Path dir) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir);
+            return true;
+        }
+        Files.createDirectories(dir.getParent());
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            // checked below
+        }
+        PosixFileAttributes attributes =
+                Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = UserHolder.USER;
+        return attributes.isDirectory()
+                && (user == null || user.equals(attributes.owner()))
+                && OWNER_ONLY.containsAll(attributes.permissions());
+    }
+
+    private static File choose(String nativeLibBaseName) {
+        File javaTmpDir = new File(System.getProperty("java.io.tmpdir"));
+        List<Mount> mounts = MountsHolder.MOUNTS;
+        if (mounts.isEmpty()) {
+            return javaTmpDir;
+        }
+
+        List<File> candidates = new ArrayList<>();
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDir != null && !runtimeDir.isEmpty()) {
+            candidates.add(new File(runtimeDir));
+        }
+        candidates.add(new File("/dev/shm"));
+        candidates.add(javaTmpDir);
+        File userCacheDir = getUserCacheDir();
+        if (userCacheDir != null) {
+            candidates.add(userCacheDir);
+        }
+
+        NativeLibIndex.Entry indexEntry = getIndexEntry(nativeLibBaseName);
+        File executable = null;
+        for (File candidate : candidates) {
+            // the user's cache folder is the last resort, and the only one created if missing
+            if (candidate.equals(userCacheDir)) {
+                if (executable != null) {
+                    break;
+                }
+            } else if (!candidate.isDirectory()) {
+                continue;
+            }
+            if (!isUsable(candidate, nativeLibBaseName, indexEntry)) {
+                continue;
+            }
+            // a missing folder is judged by the parent it would be created in
+            Mount mount = Mount.of(existingAncestor(candidate).toPath(), mounts);
+            if (mount == null) {
+                continue;
+            }
+            if (mount.noexec) {
+                logger.debug("Not extracting to {}: mounted noexec", candidate);
+                continue;
+            }
+            if (RAM_FILE_SYSTEMS.contains(mount.fsType)) {
+                logger.debug("Extracting native libraries to {} ({})", candidate, mount.fsType);
+                return created(candidate);
+            }
+            if (executable == null) {
+                executable = candidate;
+            }
+        }
+        if (executable == null) {
+            logger.warn(
+                    "None of {} is writable, has enough space and allows executing native"
+                            + " libraries, using {}",
+                    candidates,
+                    javaTmpDir);
+            return javaTmpDir;
+        }
+        logger.debug("Extracting native libraries to {}", executable);
+        return created(executable);
+    }
+
+    /** @return The folder, created if missing, which only the user's cache folder may be. */
+    private static File created(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.debug("Could not create {}", dir);
+        }
+        return dir;
+    }
+
+    /** @return The folder if it exists, else its closest existing parent, or null. */
+    private static File existingAncestor(File dir) {
+        File existing = dir.getAbsoluteFile();
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        return existing;
+    }
+
+    /** @return $XDG_CACHE_HOME, else ~/.cache, or null if there is no home folder. */
+    private static File getUserCacheDir() {
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome != null && !cacheHome.isEmpty()) {
+            return new File(cacheHome);
+        }
+        String home = System.getProperty("user.home");
+        if (home == null || home.isEmpty() || home.equals("?")) {
+            return null;
+        }
+        return new File(home, ".cache");
+    }
+
+    /** @return The index entry of the library bundled for the current OS, or null. */
+    private static NativeLibIndex.Entry getIndexEntry(String nativeLibBaseName) {
+        String nativeLibName = LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
+        return NativeLibIndex.get(
+                LibraryLoaderUtil.getNativeLibResourcePath(nativeLibName) + "/" + nativeLibName);
+    }
+
+    /**
+     * @return True if the folder has room for the library and its cache folder can be created or
+     *     written, down to the entry of the library and its lock files. A missing folder is usable
+     *     if it can be created.
+     */
+    private static boolean isUsable(
+            File dir, String nativeLibBaseName, NativeLibIndex.Entry indexEntry) {
+        File existing = existingAncestor(dir);
+        if (existing == null || !existing.isDirectory() || !existing.canWrite()) {
+            return false;
+        }
+        long needed = HEADROOM + (indexEntry == null ? 0 : Math.max(indexEntry.getSize(), 0));
+        if (existing.getUsableSpace() < needed) {
+            logger.debug(
+                    "Not extracting to {}: {} bytes usable, {} needed",
+                    dir,
+                    existing.getUsableSpace(),
+                    needed);
+            return false;
+        }
+        if (!existing.equals(dir.getAbsoluteFile())) {
+            return true;
+        }
+        File cacheDir = new File(dir, getCacheDirName(nativeLibBaseName));
+        if (!cacheDir.exists()) {
+            return true;
+        }
+        if (!cacheDir.isDirectory() || !cacheDir.canWrite()) {
+            return false;
+        }
+        // the entry of the library if known, else every entry it could be
+        File[] entries =
+                indexEntry == null
+                        ? cacheDir.listFiles(File::isDirectory)
+                        : new File[] {new File(cacheDir, indexEntry.getDigest())};
+        if (entries == null) {
+            return false;
+        }
+        for (File entry : entries) {
+            if (entry.exists() && !isWritableEntry(entry)) {
+                logger.debug("Not extracting to {}: cannot write {}", dir, entry);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return True if the entry folder and the lock files in it can be written. */
+    private static boolean isWritableEntry(File entry) {
+        if (!entry.isDirectory() || !entry.canWrite()) {
+            return false;
+        }
+        File[] lockFiles =
+                entry.listFiles((folder, name) -> name.endsWith(NativeLibLocks.LOCK_EXT));
+        if (lockFiles == null) {
+            return false;
+        }
+        for (File lockFile : lockFiles) {
+            if (!lockFile.canWrite()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** A mount point of /proc/self/mountinfo. */
+    static final class Mount {
+        final Path mountPoint;
+        final String fsType;
+        final boolean noexec;
+
+        Mount(Path mountPoint, String fsType, boolean noexec) {
+            this.mountPoint = mountPoint;
+            this.fsType = fsType;
+            this.noexec = noexec;
+        }
+
+        /**
+         * Parses a line such as "26 25 0:24 / /dev/shm rw,nosuid,noexec - tmpfs tmpfs rw".
+         *
+         * @return The mount, or null if the line cannot be parsed.
+         */
+        static Mount parse(String line) {
+            String[] fields = line.split(" ");
+            int separator = Arrays.asList(fields).indexOf("-");
+            if (fields.length < 6 || separator < 6 || separator + 1 >= fields.length) {
+                return null;
+            }
+            boolean noexec = Arrays.asList(fields[5].split(",")).contains("noexec");
+            return new Mount(Paths.get(unescape(fields[4])), fields[separator + 1], noexec);
+        }
+
+        /**
+         * @return The mount the given path lives on: the longest matching mount point, the last
+         *     one listed if several are stacked on the same point.
+         */
+        static Mount of(Path path, List<Mount> mounts) {
+            Path realPath;
+            try {
+                realPath = path.toRealPath();
+            } catch (IOException e) {
+                return null;
+            }
+            Mount found = null;
+            for (Mount mount : mounts) {
+                if (realPath.startsWith(mount.mountPoint)
+                        && (found == null
+                                || mount.mountPoint.getNameCount()
+                                        >= found.mountPoint.getNameCount())) {
+                    found = mount;
+                }
+            }
+            return found;
+        }
+
+        // mountinfo escapes space, tab, newline and backslash as octal, e.g. \040
+        static String unescape(String field) {
+            StringBuilder out = new StringBuilder(field.length());
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '\\' && i + 3 < field.length() && isOctal(field, i + 1)) {
+                    out.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                    i += 3;
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.toString();
+        }
+
+        private static boolean isOctal(String field, int start) {
+            for (int i = start; i < start + 3; i++) {
+                if (field.charAt(i) < '0' || field.charAt(i) > '7') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The user running this JVM: the owner of /proc/self on Linux, else looked up by user.name.
+     * Null if unknown.
+     */
+    private static final class UserHolder {
+        private static final UserPrincipal USER;
+
+        static {
+            UserPrincipal user = null;
+            try {
+                Path self = Paths.get("/proc/self");
+                if (Files.exists(self)) {
+                    user = Files.getOwner(self);
+                } else {
+                    user =
+                            FileSystems.getDefault()
+                                    .getUserPrincipalLookupService()
+                                    .lookupPrincipalByName(System.getProperty("user.name"));
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Could not tell the current user", e);
+            }
+            USER = user;
+        }
+    }
+
+    /** Reads /proc/self/mountinfo once, on first use. Empty where it does not exist. */
+    private static final class MountsHolder {
+        private static final List<Mount> MOUNTS;
+
+        static {
+            List<Mount> mounts = new ArrayList<>();
+            Path mountInfo = Paths.get("/proc/self/mountinfo");
+            if (Files.isReadable(mountInfo)) {
+                try (Stream<String> lines = Files.lines(mountInfo)) {
+                    lines.map(Mount::parse).filter(m -> m != null).forEach(mounts::add);
+                } catch (IOException | RuntimeException e) {
+                    logger.debug("Could not read {}", mountInfo, e);
+                    mounts.clear();
+                }
+            }
+            MOUNTS = mounts;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.romantics.jni.util;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the timings of one native library load, emits a JFR event per phase and produces the
+ * resulting {@link NativeLibraryInfo}. A trace is used by one thread at a time.
+ */
+final class NativeLibTrace {
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    final String libraryName;
+    /** Library extracted ahead of the load, if any. */
+    Path extractedLibFile;
+
+    private final Map<NativeLibraryInfo.Phase, Long> phaseNanos =
+            new EnumMap<>(NativeLibraryInfo.Phase.class);
+    private final List<String> triedPaths = new ArrayList<>();
+    private NativeLibraryInfo.Source source;
+    private String path;
+    private long extractedBytes;
+    private boolean cached;
+
+    NativeLibTrace(String libraryName) {
+        this.libraryName = libraryName;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, NativeLibTrace.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /** Starts timing a phase. */
+    PhaseTimer begin(NativeLibraryInfo.Phase phase) {
+        return new PhaseTimer(phase);
+    }
+
+    List<String> getTriedPaths() {
+        return triedPaths;
+    }
+
+    void extracted(long bytes) {
+        extractedBytes += bytes;
+    }
+
+    void cached() {
+        cached = true;
+    }
+
+    boolean isCached() {
+        return cached;
+    }
+
+    NativeLibraryInfo loaded(NativeLibraryInfo.Source source, String path) {
+        this.source = source;
+        this.path = path;
+        return toInfo();
+    }
+
+    /** @return The information collected so far about the loaded library. */
+    NativeLibraryInfo toInfo() {
+        return new NativeLibraryInfo(
+                libraryName, source, path, extractedBytes, phaseNanos, triedPaths);
+    }
+
+    /** Times a single phase. */
+    final class PhaseTimer {
+        private final NativeLibraryInfo.Phase phase;
+        private final long start;
+        private final Object event;
+
+        private PhaseTimer(NativeLibraryInfo.Phase phase) {
+            this.phase = phase;
+            this.event = JFR_AVAILABLE ? JfrEvents.begin() : null;
+            this.start = System.nanoTime();
+        }
+
+        void end() {
+            end(0, null, true);
+        }
+
+        void end(long bytes, Object path, boolean success) {
+            long elapsed = System.nanoTime() - start;
+            Long previous = phaseNanos.get(phase);
+            phaseNanos.put(phase, previous == null ? elapsed : previous + elapsed);
+            if (event != null) {
+                JfrEvents.commit(
+                        event,
+                        libraryName,
+                        phase.name(),
+                        path == null ? null : path.toString(),
+                        bytes,
+                        success);
+            }
+        }
+    }
+
+    /** Keeps every reference to jdk.jfr out of classes that must load without it. */
+    private static final class JfrEvents {
+        static Object begin() {
+            NativeLibraryLoadEvent event = new NativeLibraryLoadEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        static void commit(
+                Object begun,
+                String library,
+                String phase,
+                String path,
+                long bytes,
+                boolean success) {
+            NativeLibraryLoadEvent event = (NativeLibraryLoadEvent) begun;
+            event.end();
+            if (event.shouldCommit()) {
+                event.library = library;
+                event.phase = phase;
+                event.path = path;
+                event.bytes = bytes;
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.romantics.jni.util;
+
+/**
+ * Calls System.load on behalf of an isolated class loader of {@link SwappableNativeLibrary}. The
+ * JVM binds a native library to the class loader of the class calling System.load, so the isolated
+ * loader defines its own copy of this class from the bytes of this one and loads through it.
+ */
+final class NativeLibTrampoline {
+    private NativeLibTrampoline() {}
+
+    static void load(String libFile) {
+        System.load(libFile);
+    }
+}
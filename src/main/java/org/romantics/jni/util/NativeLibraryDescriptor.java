@@ -0,0 +1,111 @@
+package org.romantics.jni.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Declares a native library to {@link NativeLibLoader#preloadAll()}, either returned by a {@link
+ * NativeLibraryProvider} or read from META-INF/org.romantics/jni/native-libraries.properties:
+ *
+ * <pre>
+ * # libraryBaseName.attribute=value, any attribute declares the library
+ * math.priority=10
+ * math.dependencies=dep
+ * math.variants=x86-64-v3,x86-64-v2
+ * </pre>
+ *
+ * <ul>
+ *   <li>priority: libraries with a higher priority are loaded first, unless they depend on one
+ *       with a lower priority (default 0);
+ *   <li>dependencies: base names of the libraries to load before this one, in addition to the
+ *       bundled ones found in the native library index;
+ *   <li>variants: the optimized builds shipped for the library, see {@link
+ *       PlatformDescriptor#getCpuVariants()}; only these and the baseline build are looked up
+ *       (default all).
+ * </ul>
+ *
+ * <p>A library declared several times gets the highest priority and all dependencies and
+ * variants.
+ */
+public final class NativeLibraryDescriptor {
+    private final String baseName;
+    private final int priority;
+    private final List<String> dependencies;
+    private final List<String> variants;
+
+    /** Declares a library without dependencies, with the default priority and all variants. */
+    public NativeLibraryDescriptor(String baseName) {
+        this(
+                baseName,
+                0,
+                Collections.<String>emptyList(),
+                Collections.<String>emptyList());
+    }
+
+    /**
+     * @param baseName Base name of the library, e.g. "math".
+     * @param priority Load priority, higher first.
+     * @param dependencies Base names of the libraries to load first.
+     * @param variants Optimized builds shipped for the library, or empty for all.
+     */
+    public NativeLibraryDescriptor(
+            String baseName, int priority, List<String> dependencies, List<String> variants) {
+        this.baseName = baseName;
+        this.priority = priority;
+        this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+        this.variants = Collections.unmodifiableList(new ArrayList<>(variants));
+    }
+
+    /** @return The base name of the library, e.g. "math". */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /** @return The load priority, higher first. */
+    public int getPriority() {
+        return priority;
+    }
+
+    /** @return Base names of the libraries to load before this one. */
+    public List<String> getDependencies() {
+        return dependencies;
+    }
+
+    /** @return The optimized builds shipped for the library, or empty for all. */
+    public List<String> getVariants() {
+        return variants;
+    }
+
+    /** @return A descriptor combining this declaration with another one of the same library. */
+    NativeLibraryDescriptor merge(NativeLibraryDescriptor other) {
+        return new NativeLibraryDescriptor(
+                baseName,
+                Math.max(priority, other.priority),
+                union(dependencies, other.dependencies),
+                variants.isEmpty() || other.variants.isEmpty()
+                        ? Collections.<String>emptyList()
+                        : union(variants, other.variants));
+    }
+
+    private static List<String> union(List<String> first, List<String> second) {
+        Set<String> union = new LinkedHashSet<>(first);
+        union.addAll(second);
+        return new ArrayList<>(union);
+    }
+
+    @Override
+    public String toString() {
+        return "NativeLibraryDescriptor{baseName="
+                + baseName
+                + ", priority="
+                + priority
+                + ", dependencies="
+                + dependencies
+                + ", variants="
+                + variants
+                + '}';
+    }
+}
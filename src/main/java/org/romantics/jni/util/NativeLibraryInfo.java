@@ -0,0 +1,138 @@
+package org.romantics.jni.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how a native library was loaded: where it came from, how many bytes had to be
+ * extracted and how long each phase of the load took.
+ *
+ * <p>usage: {@link NativeLibLoader#getLibraryInfo(String)} after the library is initialized.
+ */
+public final class NativeLibraryInfo {
+
+    /** The phases of a native library load, in the order they run. */
+    public enum Phase {
+        /** Detecting the OS and architecture to pick the bundled library. */
+        PLATFORM_DETECTION,
+        /** Finding the bundled library and its digest. */
+        RESOURCE_LOOKUP,
+        /** Compiling the bundled sources for this host, see libraryBaseName.lib.hostbuild. */
+        COMPILATION,
+        /** Copying the bundled library out of the jar. */
+        EXTRACTION,
+        /** Checking the digest of the extracted or cached library file. */
+        VERIFICATION,
+        /** Calling System.load or System.loadLibrary. */
+        LOAD,
+        /** Scheduling the background cleanup of old copies of the library, once it is loaded. */
+        CLEANUP
+    }
+
+    /** Where the loaded library was found. */
+    public enum Source {
+        /**
+         * Linked into the executable as a static JNI library, see libraryBaseName.lib.builtin.
+         */
+        BUILTIN,
+        /** The folder given by the libraryBaseName.lib.path system property. */
+        LIB_PATH,
+        /** Freshly extracted from the jar. */
+        EXTRACTED,
+        /** A copy extracted from the jar by an earlier run. */
+        CACHED,
+        /** Compiled for the CPU of this host, see libraryBaseName.lib.hostbuild. */
+        HOST_BUILD,
+        /** Copied from the jar into an anonymous memory file, see libraryBaseName.lib.memfd. */
+        MEMORY,
+        /** A folder of the java.library.path system property. */
+        JAVA_LIBRARY_PATH,
+        /** Found by System.loadLibrary. */
+        SYSTEM
+    }
+
+    private final String libraryName;
+    private final Source source;
+    private final String path;
+    private final long extractedBytes;
+    private final Map<Phase, Long> phaseNanos;
+    private final List<String> triedPaths;
+
+    NativeLibraryInfo(
+            String libraryName,
+            Source source,
+            String path,
+            long extractedBytes,
+            Map<Phase, Long> phaseNanos,
+            List<String> triedPaths) {
+        this.libraryName = libraryName;
+        this.source = source;
+        this.path = path;
+        this.extractedBytes = extractedBytes;
+        this.phaseNanos = Collections.unmodifiableMap(new EnumMap<>(phaseNanos));
+        this.triedPaths = Collections.unmodifiableList(new ArrayList<>(triedPaths));
+    }
+
+    /** @return The library base name, e.g. "math". */
+    public String getLibraryName() {
+        return libraryName;
+    }
+
+    /** @return Where the library was found. */
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return Absolute path of the loaded library file, or null if loaded by System.loadLibrary.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /** @return Number of bytes written while extracting the library; 0 if nothing was extracted. */
+    public long getExtractedBytes() {
+        return extractedBytes;
+    }
+
+    /** @return Time spent in the given phase; 0 if the phase did not run. */
+    public long getDuration(Phase phase, TimeUnit unit) {
+        Long nanos = phaseNanos.get(phase);
+        return unit.convert(nanos == null ? 0 : nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** @return Time spent in all phases. */
+    public long getTotalDuration(TimeUnit unit) {
+        long nanos = 0;
+        for (long phase : phaseNanos.values()) {
+            nanos += phase;
+        }
+        return unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** @return Locations that were tried and failed before the library was found. */
+    public List<String> getTriedPaths() {
+        return triedPaths;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("NativeLibraryInfo{library=").append(libraryName);
+        sb.append(", source=").append(source);
+        sb.append(", path=").append(path);
+        sb.append(", extractedBytes=").append(extractedBytes);
+        for (Map.Entry<Phase, Long> phase : phaseNanos.entrySet()) {
+            sb.append(", ")
+                    .append(phase.getKey().name().toLowerCase())
+                    .append("=")
+                    .append(TimeUnit.NANOSECONDS.toMicros(phase.getValue()))
+                    .append("us");
+        }
+        return sb.append("}").toString();
+    }
+}
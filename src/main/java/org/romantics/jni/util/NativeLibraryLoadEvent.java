@@ -0,0 +1,34 @@
+package org.romantics.jni.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event committed for every phase of a native library load. Only referenced through {@link
+ * NativeLibTrace} once it has checked that the running JVM ships JFR.
+ */
+@Name("org.romantics.jni.NativeLibraryLoad")
+@Label("Native Library Load Phase")
+@Category("Native Library")
+@Description("A phase of loading a native library through NativeLibLoader")
+final class NativeLibraryLoadEvent extends Event {
+    @Label("Library")
+    String library;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+}
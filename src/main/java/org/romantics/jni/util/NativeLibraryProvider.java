@@ -0,0 +1,17 @@
+package org.romantics.jni.util;
+
+import java.util.Collection;
+
+/**
+ * Declares the native libraries of a component, so that {@link NativeLibLoader#preloadAll()} loads
+ * them all in one pass at boot instead of each binding class loading its own on first use.
+ *
+ * <p>Implementations are found with {@link java.util.ServiceLoader}: list them in
+ * META-INF/services/org.romantics.jni.util.NativeLibraryProvider. Libraries can also be declared
+ * without code in META-INF/org.romantics/jni/native-libraries.properties, see {@link
+ * NativeLibraryDescriptor}.
+ */
+public interface NativeLibraryProvider {
+    /** @return The native libraries of the component. */
+    Collection<NativeLibraryDescriptor> getNativeLibraries();
+}
@@ -0,0 +1,144 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Collects the native libraries declared by {@link NativeLibraryProvider} services and by
+ * META-INF/org.romantics/jni/native-libraries.properties files.
+ */
+final class NativeLibraryProviders {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLibraryProviders.class);
+
+    static final String DESCRIPTOR_RESOURCE =
+            "META-INF/org.romantics/jni/native-libraries.properties";
+
+    private static final String PRIORITY = "priority";
+    private static final String DEPENDENCIES = "dependencies";
+    private static final String VARIANTS = "variants";
+    private static final List<String> ATTRIBUTES = Arrays.asList(PRIORITY, DEPENDENCIES, VARIANTS);
+
+    private NativeLibraryProviders() {}
+
+    /**
+     * @return The declared libraries by base name, in load order: highest priority first, then by
+     *     name.
+     */
+    static Map<String, NativeLibraryDescriptor> discover(ClassLoader classLoader) {
+        Map<String, NativeLibraryDescriptor> declared = new HashMap<>();
+        Iterator<NativeLibraryProvider> providers =
+                ServiceLoader.load(NativeLibraryProvider.class, classLoader).iterator();
+        while (true) {
+            NativeLibraryProvider provider;
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                provider = providers.next();
+            } catch (ServiceConfigurationError e) {
+                logger.error("Skipping a native library provider", e);
+                continue;
+            }
+            for (NativeLibraryDescriptor descriptor : provider.getNativeLibraries()) {
+                declare(declared, descriptor);
+            }
+        }
+        try {
+            Enumeration<URL> resources = classLoader.getResources(DESCRIPTOR_RESOURCE);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                for (NativeLibraryDescriptor descriptor : read(resource)) {
+                    declare(declared, descriptor);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not read the native library descriptors", e);
+        }
+
+        List<NativeLibraryDescriptor> ordered = new ArrayList<>(declared.values());
+        ordered.sort(
+                Comparator.comparingInt(NativeLibraryDescriptor::getPriority)
+                        .reversed()
+                        .thenComparing(NativeLibraryDescriptor::getBaseName));
+        Map<String, NativeLibraryDescriptor> descriptors = new LinkedHashMap<>();
+        for (NativeLibraryDescriptor descriptor : ordered) {
+            descriptors.put(descriptor.getBaseName(), descriptor);
+        }
+        return descriptors;
+    }
+
+    private static void declare(
+            Map<String, NativeLibraryDescriptor> declared, NativeLibraryDescriptor descriptor) {
+        declared.merge(descriptor.getBaseName(), descriptor, NativeLibraryDescriptor::merge);
+    }
+
+    /** Parses a descriptor file, skipping the lines it does not understand. */
+    private static List<NativeLibraryDescriptor> read(URL resource) throws IOException {
+        Properties properties = new Properties();
+        URLConnection connection = resource.openConnection();
+        connection.setUseCaches(false);
+        try (InputStream in = connection.getInputStream()) {
+            properties.load(in);
+        }
+
+        Set<String> baseNames = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            int separator = key.lastIndexOf('.');
+            String attribute = key.substring(separator + 1);
+            if (separator <= 0 || !ATTRIBUTES.contains(attribute)) {
+                logger.warn("Ignoring {} in {}", key, resource);
+                continue;
+            }
+            baseNames.add(key.substring(0, separator));
+        }
+
+        List<NativeLibraryDescriptor> descriptors = new ArrayList<>();
+        for (String baseName : baseNames) {
+            int priority;
+            try {
+                priority =
+                        Integer.parseInt(
+                                properties.getProperty(baseName + "." + PRIORITY, "0").trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring the priority of {} in {}", baseName, resource);
+                priority = 0;
+            }
+            descriptors.add(
+                    new NativeLibraryDescriptor(
+                            baseName,
+                            priority,
+                            split(properties.getProperty(baseName + "." + DEPENDENCIES, "")),
+                            split(properties.getProperty(baseName + "." + VARIANTS, ""))));
+        }
+        return descriptors;
+    }
+
+    private static List<String> split(String value) {
+        List<String> names = new ArrayList<>();
+        for (String name : value.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+}
@@ -24,50 +24,26 @@
 // --------------------------------------
 package org.romantics.jni.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 import java.util.stream.Stream;
 
 /**
- * Provides OS name and architecture name.
+ * Provides OS name and architecture name. The detected values are computed once and cached in
+ * {@link PlatformDescriptor}.
  *
  * @author leo
  */
 public class OSInfo {
-    static String runAndWaitFor(String command) throws IOException, InterruptedException {
-        Process p = Runtime.getRuntime().exec(command);
-        p.waitFor();
-
-        return getProcessOutput(p);
-    }
-
-    static String runAndWaitFor(String command, long timeout, TimeUnit unit)
-            throws IOException, InterruptedException {
-        Process p = Runtime.getRuntime().exec(command);
-        p.waitFor(timeout, unit);
-
-        return getProcessOutput(p);
-    }
-
-    static String getProcessOutput(Process process) throws IOException {
-        try (InputStream in = process.getInputStream()) {
-            int readLen;
-            ByteArrayOutputStream b = new ByteArrayOutputStream();
-            byte[] buf = new byte[32];
-            while ((readLen = in.read(buf, 0, buf.length)) >= 0) {
-                b.write(buf, 0, readLen);
-            }
-            return b.toString();
-        }
-    }
-
     private static final HashMap<String, String> archMapping = new HashMap<>();
 
     public static final String X86 = "x86";
@@ -77,6 +53,18 @@ public class OSInfo {
     public static final String PPC = "ppc";
     public static final String PPC64 = "ppc64";
 
+    private static final int EF_ARM_ABI_FLOAT_HARD = 0x400;
+
+    // CPU variant folder, then the /proc/cpuinfo flags it adds to the level below; lowest first
+    static final String[][] X86_64_LEVELS = {
+        {"x86-64-v2", "cx16", "lahf_lm", "popcnt", "pni", "sse4_1", "sse4_2", "ssse3"},
+        {"x86-64-v3", "avx", "avx2", "bmi1", "bmi2", "f16c", "fma", "abm", "movbe", "xsave"},
+        {"x86-64-v4", "avx512f", "avx512bw", "avx512cd", "avx512dq", "avx512vl"},
+    };
+    private static final String[][] AARCH64_LEVELS = {
+        {"armv8.2-a-dotprod", "asimddp", "asimdrdm", "atomics"},
+    };
+
     static {
         // x86 mappings
         archMapping.put(X86, X86);
@@ -132,15 +120,15 @@ public class OSInfo {
     }
 
     public static String getNativeLibFolderPathForCurrentOS() {
-        return getOSName() + "/" + getArchName();
+        return PlatformDescriptor.current().getNativeLibFolderPath();
     }
 
     public static String getOSName() {
-        return translateOSNameToFolderName(System.getProperty("os.name"));
+        return PlatformDescriptor.current().getOSName();
     }
 
     public static boolean isAndroid() {
-        return isAndroidRuntime() || isAndroidTermux();
+        return PlatformDescriptor.current().isAndroid();
     }
 
     public static boolean isAndroidRuntime() {
@@ -148,31 +136,36 @@ public class OSInfo {
     }
 
     public static boolean isAndroidTermux() {
-        try {
-            return runAndWaitFor("uname -o").toLowerCase().contains("android");
-        } catch (Exception ignored) {
-            return false;
-        }
+        return !isAndroidRuntime() && isAndroid();
     }
 
     public static boolean isMusl() {
-        Path mapFilesDir = Paths.get("/proc/self/map_files");
-        try (Stream<Path> dirStream = Files.list(mapFilesDir)) {
-            return dirStream
-                    .map(
-                            path -> {
-                                try {
-                                    return path.toRealPath().toString();
-                                } catch (IOException e) {
-                                    return "";
-                                }
-                            })
-                    .anyMatch(s -> s.toLowerCase().contains("musl"));
-        } catch (Exception ignored) {
-            // fall back to checking for alpine linux in the event we're using an older kernel which
-            // may not fail the above check
-            return isAlpineLinux();
+        return PlatformDescriptor.current().isMusl();
+    }
+
+    /**
+     * Termux runs a regular JVM on an Android kernel, where uname -o reports Android. Look for the
+     * Android system partition or the Termux environment instead of running uname.
+     */
+    static boolean detectAndroidTermux() {
+        return System.getenv("TERMUX_VERSION") != null
+                || Files.exists(Paths.get("/system/build.prop"));
+    }
+
+    /**
+     * Checks the program interpreter of the running executable, e.g. /lib/ld-musl-x86_64.so.1,
+     * instead of resolving every mapped file of the process.
+     */
+    static boolean detectMusl() {
+        try {
+            ElfInfo exe = ElfInfo.read(Paths.get("/proc/self/exe"));
+            if (exe != null && exe.interpreter != null) {
+                return exe.interpreter.toLowerCase(Locale.US).contains("musl");
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // fall back to checking for alpine linux if /proc is not available
         }
+        return isAlpineLinux();
     }
 
     private static boolean isAlpineLinux() {
@@ -183,23 +176,57 @@ public class OSInfo {
         return false;
     }
 
-    static String getHardwareName() {
-        try {
-            return runAndWaitFor("uname -m");
-        } catch (Throwable e) {
-            return "unknown";
+    /**
+     * Reads the ARM architecture version of the CPU from /proc/cpuinfo, e.g. 7 for "CPU
+     * architecture: 7" or 5 for "CPU architecture: 5TEJ".
+     *
+     * @return The version, or -1 if unknown.
+     */
+    static int getArmArchVersion() {
+        try (Stream<String> cpuLines = Files.lines(Paths.get("/proc/cpuinfo"))) {
+            return cpuLines.filter(l -> l.startsWith("CPU architecture"))
+                    .map(l -> l.substring(l.indexOf(':') + 1).trim())
+                    .map(v -> v.replaceAll("^(\\d+).*$", "$1"))
+                    .filter(v -> !v.isEmpty() && Character.isDigit(v.charAt(0)))
+                    .map(Integer::parseInt)
+                    .findFirst()
+                    .orElse(-1);
+        } catch (Exception ignored) {
+            return -1;
         }
     }
 
-    static String resolveArmArchType() {
+    /**
+     * Checks whether the running JVM uses the ARM hard-float ABI, from the EF_ARM_ABI_FLOAT_HARD
+     * flag in the ELF header of the libjvm.so mapped into this process.
+     */
+    static boolean isArmHardFloat() {
+        try (Stream<String> mapLines = Files.lines(Paths.get("/proc/self/maps"))) {
+            String libjvm =
+                    mapLines.filter(l -> l.endsWith("/libjvm.so"))
+                            .map(l -> l.substring(l.indexOf('/')))
+                            .findFirst()
+                            .orElse(null);
+            if (libjvm != null) {
+                ElfInfo elf = ElfInfo.read(Paths.get(libjvm));
+                return elf != null && (elf.flags & EF_ARM_ABI_FLOAT_HARD) != 0;
+            }
+        } catch (Exception ignored) {
+            // ignored: fall back to "arm" arch (soft-float ABI)
+        }
+        return false;
+    }
+
+    static String resolveArmArchType(boolean android) {
         if (System.getProperty("os.name").contains("Linux")) {
-            String armType = getHardwareName();
-            // armType (uname -m) can be armv5t, armv5te, armv5tej, armv5tejl, armv6, armv7, armv7l,
-            // aarch64, i686
+            int armVersion = getArmArchVersion();
+            boolean is32bitJVM = "32".equals(System.getProperty("sun.arch.data.model"));
+            // the ARM version in /proc/cpuinfo stands in for uname -m: armv5tejl, armv6l, armv7l,
+            // aarch64
 
             // for Android, we fold everything that is not aarch64 into arm
-            if (isAndroid()) {
-                if (armType.startsWith("aarch64")) {
+            if (android) {
+                if (armVersion >= 8 && !is32bitJVM) {
                     // Use arm64
                     return "aarch64";
                 } else {
@@ -207,17 +234,16 @@ public class OSInfo {
                 }
             }
 
-            if (armType.startsWith("armv6")) {
+            if (armVersion == 6) {
                 // Raspberry PI
                 return "armv6";
-            } else if (armType.startsWith("armv7")) {
+            } else if (armVersion == 7) {
                 // Generic
                 return "armv7";
-            } else if (armType.startsWith("armv5")) {
+            } else if (armVersion == 5) {
                 // Use armv5, soft-float ABI
                 return "arm";
-            } else if (armType.startsWith("aarch64")) {
-                boolean is32bitJVM = "32".equals(System.getProperty("sun.arch.data.model"));
+            } else if (armVersion >= 8) {
                 if (is32bitJVM) {
                     // An aarch64 architecture should support armv7
                     return "armv7";
@@ -234,30 +260,9 @@ public class OSInfo {
                 return "armv7";
             }
 
-            // For java7, we still need to run some shell commands to determine ABI of JVM
-            String javaHome = System.getProperty("java.home");
-            try {
-                // determine if first JVM found uses ARM hard-float ABI
-                int exitCode = Runtime.getRuntime().exec("which readelf").waitFor();
-                if (exitCode == 0) {
-                    String[] cmdarray = {
-                        "/bin/sh",
-                        "-c",
-                        "find '"
-                                + javaHome
-                                + "' -name 'libjvm.so' | head -1 | xargs readelf -A | "
-                                + "grep 'Tag_ABI_VFP_args: VFP registers'"
-                    };
-                    exitCode = Runtime.getRuntime().exec(cmdarray).waitFor();
-                    if (exitCode == 0) {
-                        return "armv7";
-                    }
-                } else {
-                    System.err.println(
-                            "readelf not found. Cannot check if running on an armhf system, armel architecture will be presumed");
-                }
-            } catch (IOException | InterruptedException e) {
-                // ignored: fall back to "arm" arch (soft-float ABI)
+            // Otherwise check the ABI libjvm.so was built for
+            if (isArmHardFloat()) {
+                return "armv7";
             }
         }
         // Use armv5, soft-float ABI
@@ -265,6 +270,71 @@ public class OSInfo {
     }
 
     public static String getArchName() {
+        return PlatformDescriptor.current().getArchName();
+    }
+
+    /** @return Optimized builds the current CPU can run, best first. */
+    public static List<String> getCpuVariants() {
+        return PlatformDescriptor.current().getCpuVariants();
+    }
+
+    /**
+     * Matches the CPU features listed in /proc/cpuinfo against the requirements of the optimized
+     * builds of Makefile.common. Other OSes only use the baseline build.
+     */
+    static List<String> detectCpuVariants(String archName) {
+        String override = System.getProperty("org.romantics.jni.cpu.variants");
+        if (override != null) {
+            List<String> variants = new ArrayList<>();
+            for (String variant : override.split(",")) {
+                if (!variant.trim().isEmpty() && !"none".equals(variant.trim())) {
+                    variants.add(variant.trim());
+                }
+            }
+            return Collections.unmodifiableList(variants);
+        }
+        String[][] levels;
+        if (X86_64.equals(archName)) {
+            levels = X86_64_LEVELS;
+        } else if ("aarch64".equals(archName)) {
+            levels = AARCH64_LEVELS;
+        } else {
+            return Collections.emptyList();
+        }
+        return supportedLevels(levels, getCpuFeatures());
+    }
+
+    /**
+     * @param levels Variant folders, lowest first, each followed by the flags it adds to the
+     *     levels below.
+     * @return The folders of the levels whose flags and lower levels' flags the CPU has, best
+     *     first.
+     */
+    static List<String> supportedLevels(String[][] levels, Set<String> features) {
+        List<String> variants = new ArrayList<>();
+        for (String[] level : levels) {
+            if (!features.containsAll(Arrays.asList(level).subList(1, level.length))) {
+                break;
+            }
+            variants.add(0, level[0]);
+        }
+        return Collections.unmodifiableList(variants);
+    }
+
+    /** @return The flags (x86) or Features (ARM) of the first CPU in /proc/cpuinfo. */
+    static Set<String> getCpuFeatures() {
+        try (Stream<String> cpuLines = Files.lines(Paths.get("/proc/cpuinfo"))) {
+            return cpuLines.filter(l -> l.startsWith("flags") || l.startsWith("Features"))
+                    .findFirst()
+                    .map(l -> l.substring(l.indexOf(':') + 1).trim().split("\\s+"))
+                    .map(flags -> new HashSet<>(Arrays.asList(flags)))
+                    .orElseGet(HashSet::new);
+        } catch (Exception ignored) {
+            return Collections.emptySet();
+        }
+    }
+
+    static String detectArchName(boolean android) {
         String override = System.getProperty("org.sqlite.osinfo.architecture");
         if (override != null) {
             return override;
@@ -273,7 +343,7 @@ public class OSInfo {
         String osArch = System.getProperty("os.arch");
 
         if (osArch.startsWith("arm")) {
-            osArch = resolveArmArchType();
+            osArch = resolveArmArchType(android);
         } else {
             String lc = osArch.toLowerCase(Locale.US);
             if (archMapping.containsKey(lc)) return archMapping.get(lc);
@@ -281,16 +351,16 @@ public class OSInfo {
         return translateArchNameToFolderName(osArch);
     }
 
-    static String translateOSNameToFolderName(String osName) {
+    static String translateOSNameToFolderName(String osName, boolean musl, boolean android) {
         if (osName.contains("Windows")) {
             return "Windows";
         } else if (osName.contains("Mac") || osName.contains("Darwin")) {
             return "Mac";
         } else if (osName.contains("AIX")) {
             return "AIX";
-        } else if (isMusl()) {
+        } else if (musl) {
             return "Linux-Musl";
-        } else if (isAndroid()) {
+        } else if (android) {
             return "Linux-Android";
         } else if (osName.contains("Linux")) {
             return "Linux";
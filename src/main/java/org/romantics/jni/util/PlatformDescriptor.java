@@ -0,0 +1,106 @@
+package org.romantics.jni.util;
+
+import java.util.List;
+
+/**
+ * The platform this JVM runs on, as used to pick the bundled native library. It is detected once,
+ * on first use, from system properties, /proc, /etc/os-release and the ELF headers of the running
+ * JVM, without starting any process.
+ *
+ * <p>The org.sqlite.osinfo.architecture system property overrides the detected architecture, and
+ * org.romantics.jni.cpu.variants the detected CPU variants (a comma-separated list, "none" for the
+ * baseline build only); both are read when the descriptor is first detected.
+ */
+public final class PlatformDescriptor {
+    private final String osName;
+    private final String archName;
+    private final boolean musl;
+    private final boolean android;
+    private final List<String> cpuVariants;
+
+    private PlatformDescriptor(
+            String osName,
+            String archName,
+            boolean musl,
+            boolean android,
+            List<String> cpuVariants) {
+        this.osName = osName;
+        this.archName = archName;
+        this.musl = musl;
+        this.android = android;
+        this.cpuVariants = cpuVariants;
+    }
+
+    /** @return The descriptor of the current platform. */
+    public static PlatformDescriptor current() {
+        return DescriptorHolder.CURRENT;
+    }
+
+    /** @return OS folder name of the native libraries, e.g. Linux, Linux-Musl or Mac. */
+    public String getOSName() {
+        return osName;
+    }
+
+    /** @return Architecture folder name of the native libraries, e.g. x86_64 or armv7. */
+    public String getArchName() {
+        return archName;
+    }
+
+    /** @return True if the JVM runs against the musl C library. */
+    public boolean isMusl() {
+        return musl;
+    }
+
+    /** @return True on Android, either the Android runtime or a JVM under Termux. */
+    public boolean isAndroid() {
+        return android;
+    }
+
+    /**
+     * @return Optimized builds the CPU can run, best first, e.g. [x86-64-v3, x86-64-v2]. The
+     *     baseline build is not listed.
+     */
+    public List<String> getCpuVariants() {
+        return cpuVariants;
+    }
+
+    /** @return Folder of the native libraries for this platform, e.g. Linux/x86_64. */
+    public String getNativeLibFolderPath() {
+        return osName + "/" + archName;
+    }
+
+    @Override
+    public String toString() {
+        return "PlatformDescriptor{os="
+                + osName
+                + ", arch="
+                + archName
+                + ", musl="
+                + musl
+                + ", android="
+                + android
+                + ", cpuVariants="
+                + cpuVariants
+                + '}';
+    }
+
+    /** Detects the platform once, on first use. */
+    private static final class DescriptorHolder {
+        private static final PlatformDescriptor CURRENT = detect();
+
+        private static PlatformDescriptor detect() {
+            String osName = System.getProperty("os.name");
+            boolean linux = osName.contains("Linux");
+            boolean musl = linux && OSInfo.detectMusl();
+            boolean android =
+                    OSInfo.isAndroidRuntime() || (linux && OSInfo.detectAndroidTermux());
+            String archName = OSInfo.detectArchName(android);
+            return new PlatformDescriptor(
+                    OSInfo.translateOSNameToFolderName(osName, musl, android),
+                    archName,
+                    musl,
+                    android,
+                    OSInfo.detectCpuVariants(archName));
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package org.romantics.jni.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A native library that can be replaced while the JVM runs. Every version is loaded by its own
+ * disposable class loader together with the binding class declaring the native methods, and the
+ * JVM unloads it once that class loader is garbage collected.
+ *
+ * <p>The binding class implements an interface of the application and has a no-argument
+ * constructor; its native methods are named after it as usual. The isolated class loader defines
+ * the binding class and its nested classes itself and delegates every other class to the class
+ * loader of the interface. The binding class must therefore not load the library itself, e.g.
+ * through {@link NativeLibLoader#initialize(String)} in a static initializer.
+ *
+ * <p>usage:
+ *
+ * <pre>{@code
+ * SwappableNativeLibrary<MathOps> math =
+ *         SwappableNativeLibrary.open("math", MathOps.class, "com.example.NativeMathOps");
+ * try (SwappableNativeLibrary.Lease<MathOps> lease = math.acquire()) {
+ *     lease.get().add(1, 2);
+ * }
+ * math.swap(Paths.get("/opt/fixes/libmath.so"));
+ * }</pre>
+ *
+ * <p>A swap directs the following leases to the new version at once, while the calls holding a
+ * lease on the previous version drain. When the last of them closes its lease, the previous
+ * version is dropped so that its class loader and library can be collected. The rest of the
+ * application keeps running, with the code the JIT compiled for it.
+ *
+ * <p>Not supported in a GraalVM native image, which cannot define classes at run time.
+ */
+public final class SwappableNativeLibrary<T> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SwappableNativeLibrary.class);
+
+    /** Number of the last instance of a library loaded by this class loader. */
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final String nativeLibBaseName;
+    private final Class<T> api;
+    private final String bindingClassName;
+    private volatile Version<T> current;
+
+    SwappableNativeLibrary(String nativeLibBaseName, Class<T> api, String bindingClassName) {
+        this.nativeLibBaseName = nativeLibBaseName;
+        this.api = api;
+        this.bindingClassName = bindingClassName;
+    }
+
+    /**
+     * Loads the first version of the library, the one bundled for the current OS.
+     *
+     * @param api Interface implemented by the binding class.
+     * @param bindingClassName Binary name of the binding class, e.g. com.example.NativeMathOps.
+     */
+    public static <T> SwappableNativeLibrary<T> open(
+            String nativeLibBaseName, Class<T> api, String bindingClassName) throws Exception {
+        return open(nativeLibBaseName, api, bindingClassName, null);
+    }
+
+    /**
+     * Loads the first version of the library from the given file.
+     *
+     * @param libFile The library file, or null for the one bundled for the current OS.
+     * @see #open(String, Class, String)
+     */
+    public static <T> SwappableNativeLibrary<T> open(
+            String nativeLibBaseName, Class<T> api, String bindingClassName, Path libFile)
+            throws Exception {
+        SwappableNativeLibrary<T> library =
+                new SwappableNativeLibrary<>(nativeLibBaseName, api, bindingClassName);
+        library.install(library.load(1, libFile));
+        return library;
+    }
+
+    /**
+     * Leases the current version for one or more calls. Close the lease, e.g. with
+     * try-with-resources, so that a replaced version can drain.
+     *
+     * @throws IllegalStateException if the library was closed.
+     */
+    public Lease<T> acquire() {
+        while (true) {
+            Version<T> version = current;
+            if (version == null) {
+                throw new IllegalStateException(
+                        "Native library " + nativeLibBaseName + " is closed");
+            }
+            // a version retired meanwhile refuses the lease; retry with its successor
+            if (version.tryAcquire()) {
+                return new Lease<>(version);
+            }
+        }
+    }
+
+    /**
+     * Loads a new version of the library from the given file and directs the following leases to
+     * it. The file is copied into the cache of the library, so it may be replaced afterwards.
+     *
+     * @return Completes once the last call on the previous version closed its lease.
+     * @throws IllegalStateException if the library was closed.
+     */
+    public synchronized CompletableFuture<Void> swap(Path libFile) throws Exception {
+        Version<T> previous = current;
+        if (previous == null) {
+            throw new IllegalStateException("Native library " + nativeLibBaseName + " is closed");
+        }
+        Version<T> next = load(previous.number + 1, libFile);
+        CompletableFuture<Void> drained = install(next);
+        logger.debug(
+                "Swapped native library {} to version {} from {}",
+                nativeLibBaseName,
+                next.number,
+                libFile);
+        return drained;
+    }
+
+    /**
+     * Directs the following leases to the given version and retires the current one, if any.
+     *
+     * @return Completes once the last call on the retired version closed its lease.
+     */
+    synchronized CompletableFuture<Void> install(Version<T> next) {
+        Version<T> previous = current;
+        current = next;
+        return previous == null ? CompletableFuture.completedFuture(null) : previous.retire();
+    }
+
+    /** @return The number of the current version, 1 for the first one, or 0 once closed. */
+    public int getVersion() {
+        Version<T> version = current;
+        return version == null ? 0 : version.number;
+    }
+
+    /** Refuses new leases and drops the current version once its calls drained. */
+    @Override
+    public synchronized void close() {
+        Version<T> version = current;
+        current = null;
+        if (version != null) {
+            version.retire();
+        }
+    }
+
+    private Version<T> load(int number, Path libFile) throws Exception {
+        ClassLoader parent = api.getClassLoader();
+        IsolatedClassLoader loader =
+                new IsolatedClassLoader(
+                        parent == null ? ClassLoader.getSystemClassLoader() : parent,
+                        bindingClassName);
+        Method load =
+                Class.forName(NativeLibTrampoline.class.getName(), true, loader)
+                        .getDeclaredMethod("load", String.class);
+        load.setAccessible(true);
+
+        // the instances are named swap-1, swap-2... in every class loader defining this class, so
+        // the ones still loaded by another class loader are skipped
+        Path instance;
+        for (int attempt = 1; ; attempt++) {
+            instance =
+                    NativeLibLoader.extractIsolatedInstance(
+                            nativeLibBaseName, libFile, "swap-" + instances.incrementAndGet());
+            try {
+                load.invoke(null, instance.toString());
+                break;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnsatisfiedLinkError
+                        && NativeLibLoader.isLoadedElsewhere((UnsatisfiedLinkError) cause)) {
+                    if (attempt < NativeLibLoader.MAX_INSTANCES) {
+                        continue;
+                    }
+                    UnsatisfiedLinkError error =
+                            new UnsatisfiedLinkError(
+                                    "Could not load version "
+                                            + number
+                                            + " of native library "
+                                            + nativeLibBaseName
+                                            + ": the last "
+                                            + NativeLibLoader.MAX_INSTANCES
+                                            + " instances are loaded by other class loaders");
+                    error.initCause(cause);
+                    throw error;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+
+        Constructor<? extends T> constructor =
+                Class.forName(bindingClassName, true, loader)
+                        .asSubclass(api)
+                        .getDeclaredConstructor();
+        constructor.setAccessible(true);
+        logger.debug(
+                "Loaded version {} of native library {} from {}",
+                number,
+                nativeLibBaseName,
+                instance);
+        return new Version<>(number, constructor.newInstance());
+    }
+
+    /** A lease on one version of the library. Not thread-safe. */
+    public static final class Lease<T> implements AutoCloseable {
+        private final Version<T> version;
+        private boolean closed;
+
+        private Lease(Version<T> version) {
+            this.version = version;
+        }
+
+        /** @return The binding of the leased version, not to be used once the lease is closed. */
+        public T get() {
+            if (closed) {
+                throw new IllegalStateException("Lease is closed");
+            }
+            return version.binding;
+        }
+
+        /** @return The number of the leased version. */
+        public int getVersion() {
+            return version.number;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                version.release();
+            }
+        }
+    }
+
+    /**
+     * One loaded version, counting the leases still using it plus one reference of the library,
+     * released when the version is retired. The version is dropped when the count reaches zero, so
+     * exactly once, and a lease can only be taken while it is above zero.
+     */
+    static final class Version<T> {
+        final int number;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final CompletableFuture<Void> drained = new CompletableFuture<>();
+        private volatile boolean retired;
+        // cleared once drained, so that its class loader and library can be collected
+        volatile T binding;
+
+        Version(int number, T binding) {
+            this.number = number;
+            this.binding = binding;
+        }
+
+        boolean tryAcquire() {
+            // still draining a retired version, but the next lease goes to its successor
+            if (retired) {
+                return false;
+            }
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                drop();
+            }
+        }
+
+        /** Called once, when the version is replaced or the library closed. */
+        CompletableFuture<Void> retire() {
+            retired = true;
+            release();
+            return drained;
+        }
+
+        private void drop() {
+            binding = null;
+            drained.complete(null);
+        }
+    }
+
+    /**
+     * Defines the binding class, its nested classes and {@link NativeLibTrampoline} itself, from
+     * the bytes its parent would load them from, and delegates all other classes to the parent.
+     */
+    private static final class IsolatedClassLoader extends ClassLoader {
+        private static final String TRAMPOLINE = NativeLibTrampoline.class.getName();
+
+        private final String bindingClassName;
+
+        IsolatedClassLoader(ClassLoader parent, String bindingClassName) {
+            super(parent);
+            this.bindingClassName = bindingClassName;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!isIsolated(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    c = defineIsolated(name);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        private boolean isIsolated(String name) {
+            return name.equals(TRAMPOLINE)
+                    || name.equals(bindingClassName)
+                    || name.startsWith(bindingClassName + "$");
+        }
+
+        private Class<?> defineIsolated(String name) throws ClassNotFoundException {
+            ClassLoader source =
+                    name.equals(TRAMPOLINE)
+                            ? NativeLibTrampoline.class.getClassLoader()
+                            : getParent();
+            String resourceName = name.replace('.', '/') + ".class";
+            try (InputStream in = source.getResourceAsStream(resourceName)) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] bytes = NativeLibFiles.readFully(in);
+                return defineClass(name, bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+}
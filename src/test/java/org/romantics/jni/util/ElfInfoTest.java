@@ -0,0 +1,183 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ElfInfoTest {
+    private static final int EM_386 = 3;
+    private static final int EM_PPC = 20;
+    private static final int EM_X86_64 = 62;
+    private static final String INTERPRETER = "/lib64/ld-linux-x86-64.so.2";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parses64BitLittleEndian() {
+        ElfInfo elf =
+                ElfInfo.parse(
+                        elf(true, ByteOrder.LITTLE_ENDIAN, EM_X86_64, INTERPRETER, "libc.so.6"));
+
+        assertTrue(elf.is64Bit);
+        assertTrue(elf.littleEndian);
+        assertEquals(EM_X86_64, elf.machine);
+        assertEquals(0x5, elf.flags);
+        assertEquals(INTERPRETER, elf.interpreter);
+        assertEquals(Collections.singletonList("libc.so.6"), elf.needed);
+    }
+
+    @Test
+    public void parses32BitBigEndian() {
+        ElfInfo elf =
+                ElfInfo.parse(
+                        elf(false, ByteOrder.BIG_ENDIAN, EM_PPC, null, "libm.so.6", "libc.so.6"));
+
+        assertFalse(elf.is64Bit);
+        assertFalse(elf.littleEndian);
+        assertEquals(EM_PPC, elf.machine);
+        assertNull(elf.interpreter);
+        assertEquals(Arrays.asList("libm.so.6", "libc.so.6"), elf.needed);
+    }
+
+    @Test
+    public void readsFiles() throws IOException {
+        ByteBuffer image = elf(false, ByteOrder.LITTLE_ENDIAN, EM_386, null, "libdep.so");
+        byte[] bytes = new byte[image.limit()];
+        image.get(bytes);
+        Path file = folder.newFile("libmath.so").toPath();
+        Files.write(file, bytes);
+
+        ElfInfo elf = ElfInfo.read(file);
+
+        assertEquals(EM_386, elf.machine);
+        assertEquals(Collections.singletonList("libdep.so"), elf.needed);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        assertNull(ElfInfo.parse(ByteBuffer.wrap(new byte[64])));
+        assertNull(ElfInfo.parse(ByteBuffer.wrap("\u007fELF".getBytes(StandardCharsets.UTF_8))));
+
+        // program headers beyond the end of the file
+        ByteBuffer truncated = elf(true, ByteOrder.LITTLE_ENDIAN, EM_X86_64, null, "libc.so.6");
+        truncated.limit(80);
+        assertNull(ElfInfo.parse(truncated.slice()));
+
+        Path empty = folder.newFile("empty.so").toPath();
+        assertNull(ElfInfo.read(empty));
+    }
+
+    /**
+     * Builds a shared library image with one PT_LOAD segment covering the whole file, an optional
+     * PT_INTERP and a PT_DYNAMIC section listing the given DT_NEEDED entries.
+     */
+    static ByteBuffer elf(
+            boolean is64Bit, ByteOrder order, int machine, String interpreter, String... needed) {
+        int headerSize = is64Bit ? 64 : 52;
+        int phentsize = is64Bit ? 56 : 32;
+        int dynentsize = is64Bit ? 16 : 8;
+        int phnum = interpreter == null ? 2 : 3;
+        long vaddr = 0x400000;
+
+        int interpOffset = headerSize + phnum * phentsize;
+        byte[] interp =
+                interpreter == null
+                        ? new byte[0]
+                        : (interpreter + "\0").getBytes(StandardCharsets.UTF_8);
+        int strtabOffset = interpOffset + interp.length;
+        StringBuilder strtab = new StringBuilder("\0");
+        int[] nameOffsets = new int[needed.length];
+        for (int i = 0; i < needed.length; i++) {
+            nameOffsets[i] = strtab.length();
+            strtab.append(needed[i]).append('\0');
+        }
+        byte[] strings = strtab.toString().getBytes(StandardCharsets.UTF_8);
+        int dynamicOffset = (strtabOffset + strings.length + 7) & ~7;
+        int dynamicSize = (needed.length + 2) * dynentsize;
+        int size = dynamicOffset + dynamicSize;
+
+        ByteBuffer buf = ByteBuffer.allocate(size).order(order);
+        buf.put(new byte[] {0x7f, 'E', 'L', 'F', (byte) (is64Bit ? 2 : 1)});
+        buf.put(5, (byte) (order == ByteOrder.LITTLE_ENDIAN ? 1 : 2));
+        buf.putShort(18, (short) machine);
+        if (is64Bit) {
+            buf.putLong(32, headerSize);
+            buf.putInt(48, 0x5);
+            buf.putShort(54, (short) phentsize);
+            buf.putShort(56, (short) phnum);
+        } else {
+            buf.putInt(28, headerSize);
+            buf.putInt(36, 0x5);
+            buf.putShort(42, (short) phentsize);
+            buf.putShort(44, (short) phnum);
+        }
+
+        int ph = headerSize;
+        programHeader(buf, is64Bit, ph, 1, 0, vaddr, size);
+        programHeader(
+                buf, is64Bit, ph + phentsize, 2, dynamicOffset, vaddr + dynamicOffset, dynamicSize);
+        if (interpreter != null) {
+            programHeader(
+                    buf,
+                    is64Bit,
+                    ph + 2 * phentsize,
+                    3,
+                    interpOffset,
+                    vaddr + interpOffset,
+                    interp.length);
+            System.arraycopy(interp, 0, buf.array(), interpOffset, interp.length);
+        }
+        System.arraycopy(strings, 0, buf.array(), strtabOffset, strings.length);
+
+        int dyn = dynamicOffset;
+        for (int nameOffset : nameOffsets) {
+            dynamicEntry(buf, is64Bit, dyn, 1, nameOffset);
+            dyn += dynentsize;
+        }
+        dynamicEntry(buf, is64Bit, dyn, 5, vaddr + strtabOffset);
+        // DT_NULL, already zero
+
+        buf.clear();
+        return buf;
+    }
+
+    private static void programHeader(
+            ByteBuffer buf, boolean is64Bit, int at, int type, long offset, long vaddr, long size) {
+        buf.putInt(at, type);
+        if (is64Bit) {
+            buf.putLong(at + 8, offset);
+            buf.putLong(at + 16, vaddr);
+            buf.putLong(at + 32, size);
+            buf.putLong(at + 40, size);
+        } else {
+            buf.putInt(at + 4, (int) offset);
+            buf.putInt(at + 8, (int) vaddr);
+            buf.putInt(at + 16, (int) size);
+            buf.putInt(at + 20, (int) size);
+        }
+    }
+
+    private static void dynamicEntry(ByteBuffer buf, boolean is64Bit, int at, long tag, long val) {
+        if (is64Bit) {
+            buf.putLong(at, tag);
+            buf.putLong(at + 8, val);
+        } else {
+            buf.putInt(at, (int) tag);
+            buf.putInt(at + 4, (int) val);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+public class NativeLibCacheCleanerTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    public void evictsOldEntries() throws IOException {
+        Path cacheDir = folder.getRoot().toPath();
+        Path old = entry(cacheDir, "old", 100, now - 10 * DAY);
+        Path inUse = entry(cacheDir, "in-use", 100, now - 10 * DAY);
+        Path recent = entry(cacheDir, "recent", 100, now - DAY);
+
+        NativeLibCacheCleaner.clean(cacheDir, inUse, 7 * DAY, Long.MAX_VALUE);
+
+        assertFalse(Files.exists(old));
+        assertTrue(Files.exists(inUse));
+        assertTrue(Files.exists(recent));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxSize() throws IOException {
+        Path cacheDir = folder.getRoot().toPath();
+        Path oldest = entry(cacheDir, "oldest", 100, now - 3 * HOUR);
+        Path older = entry(cacheDir, "older", 100, now - 2 * HOUR);
+        Path newest = entry(cacheDir, "newest", 100, now - HOUR);
+
+        NativeLibCacheCleaner.clean(cacheDir, null, 7 * DAY, 250);
+        assertFalse(Files.exists(oldest));
+        assertTrue(Files.exists(older));
+        assertTrue(Files.exists(newest));
+
+        // the entry in use counts towards the size but stays
+        NativeLibCacheCleaner.clean(cacheDir, older, 7 * DAY, 50);
+        assertTrue(Files.exists(older));
+        assertFalse(Files.exists(newest));
+    }
+
+    @Test
+    public void removesStaleTemporaryFiles() throws IOException {
+        Path cacheDir = folder.getRoot().toPath();
+        Path entry = entry(cacheDir, "entry", 100, now - HOUR);
+        Path stale = file(entry.resolve("libmath.so123.tmp"), 100, now - 2 * HOUR);
+        Path writing = file(entry.resolve("libmath.so456.tmp"), 100, now);
+        touch(entry, now - HOUR);
+
+        // the stale file does not count towards the size
+        NativeLibCacheCleaner.clean(cacheDir, null, 7 * DAY, 250);
+
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(writing));
+        assertTrue(Files.exists(entry.resolve("libmath.so")));
+    }
+
+    /** Creates a cache entry holding a library of the given size, last used at the given time. */
+    private static Path entry(Path cacheDir, String name, int size, long lastUsed)
+            throws IOException {
+        Path entry = Files.createDirectory(cacheDir.resolve(name));
+        file(entry.resolve("libmath.so"), size, lastUsed);
+        touch(entry, lastUsed);
+        return entry;
+    }
+
+    private static Path file(Path file, int size, long modified) throws IOException {
+        Files.write(file, new byte[size]);
+        touch(file, modified);
+        return file;
+    }
+
+    private static void touch(Path path, long modified) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+    }
+}
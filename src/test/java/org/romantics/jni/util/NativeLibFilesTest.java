@@ -0,0 +1,58 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+public class NativeLibFilesTest {
+    private static final String DIGEST =
+            "f3b5263022577e4f658771f9ffb867f4de0f179f5d59804217c2d76c3e7c8289";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void marksVerifiedFiles() throws IOException {
+        Path libFile = library();
+        assertFalse(NativeLibFiles.isMarkedVerified(libFile, DIGEST));
+
+        NativeLibFiles.markVerified(libFile, DIGEST);
+        assertTrue(NativeLibFiles.isMarkedVerified(libFile, DIGEST));
+        assertFalse(NativeLibFiles.isMarkedVerified(libFile, DIGEST.replace('f', '0')));
+        // marking again keeps the record
+        NativeLibFiles.markVerified(libFile, DIGEST);
+        assertTrue(NativeLibFiles.isMarkedVerified(libFile, DIGEST));
+    }
+
+    @Test
+    public void changedFilesAreNoLongerMarked() throws IOException {
+        Path libFile = library();
+        NativeLibFiles.markVerified(libFile, DIGEST);
+        FileTime modified = Files.getLastModifiedTime(libFile);
+
+        Files.write(libFile, new byte[] {0x7f, 'E', 'L', 'F', 0});
+        Files.setLastModifiedTime(libFile, modified);
+        assertFalse(NativeLibFiles.isMarkedVerified(libFile, DIGEST));
+
+        // replaced by a copy of the same size and time
+        Path replacement = folder.getRoot().toPath().resolve("replacement.so");
+        Files.write(replacement, new byte[] {0x7f, 'E', 'L', 'F'});
+        Files.setLastModifiedTime(replacement, modified);
+        Files.delete(libFile);
+        Files.move(replacement, libFile);
+        assertFalse(NativeLibFiles.isMarkedVerified(libFile, DIGEST));
+    }
+
+    private Path library() throws IOException {
+        Path libFile = folder.getRoot().toPath().resolve("libmath.so");
+        Files.write(libFile, new byte[] {0x7f, 'E', 'L', 'F'});
+        return libFile;
+    }
+}
@@ -0,0 +1,92 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+public class NativeLibIndexTest {
+    private static final String DIGEST =
+            "f3b5263022577e4f658771f9ffb867f4de0f179f5d59804217c2d76c3e7c8289";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesEntries() {
+        Properties index = new Properties();
+        index.setProperty("Linux/x86_64/libmath.so.size", "15112");
+        index.setProperty("Linux/x86_64/libmath.so.sha256", DIGEST);
+        index.setProperty("Linux/x86_64/libmath.so.deps", "libdep.so,libc.so.6");
+        index.setProperty("Linux/x86_64/libmath.so.compression", "gzip");
+        index.setProperty("Windows/x86_64/math.dll.sha256", " " + DIGEST + " ");
+        index.setProperty("Windows/x86_64/math.dll.deps", "");
+        index.setProperty("Mac/aarch64/libmath.dylib.size", "100");
+
+        Map<String, NativeLibIndex.Entry> entries = NativeLibIndex.parse(index);
+
+        assertEquals(2, entries.size());
+        NativeLibIndex.Entry linux = entries.get("Linux/x86_64/libmath.so");
+        assertEquals("Linux/x86_64/libmath.so", linux.getPath());
+        assertEquals(15112, linux.getSize());
+        assertEquals(DIGEST, linux.getDigest());
+        assertEquals(Arrays.asList("libdep.so", "libc.so.6"), linux.getDependencies());
+        assertTrue(linux.isCompressed());
+
+        // no size and no dependencies, digest trimmed
+        NativeLibIndex.Entry windows = entries.get("Windows/x86_64/math.dll");
+        assertEquals(-1, windows.getSize());
+        assertEquals(DIGEST, windows.getDigest());
+        assertEquals(Collections.emptyList(), windows.getDependencies());
+        assertFalse(windows.isCompressed());
+    }
+
+    @Test
+    public void readsWhatItWrites() throws IOException {
+        Path indexFile = folder.getRoot().toPath().resolve(NativeLibIndex.INDEX_RESOURCE);
+        NativeLibIndex.write(
+                indexFile,
+                Arrays.asList(
+                        new NativeLibIndex.Entry(
+                                "Linux/x86_64/libmath.so",
+                                15112,
+                                DIGEST,
+                                Arrays.asList("libdep.so", "libc.so.6"),
+                                true),
+                        new NativeLibIndex.Entry(
+                                "Linux/x86_64/libdep.so",
+                                15016,
+                                DIGEST,
+                                Collections.<String>emptyList(),
+                                false)),
+                "test index");
+
+        Properties index = new Properties();
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            index.load(in);
+        }
+        Map<String, NativeLibIndex.Entry> entries = NativeLibIndex.parse(index);
+
+        assertEquals(2, entries.size());
+        NativeLibIndex.Entry math = entries.get("Linux/x86_64/libmath.so");
+        assertEquals(15112, math.getSize());
+        assertEquals(DIGEST, math.getDigest());
+        assertEquals(Arrays.asList("libdep.so", "libc.so.6"), math.getDependencies());
+        assertTrue(math.isCompressed());
+        NativeLibIndex.Entry dep = entries.get("Linux/x86_64/libdep.so");
+        assertEquals(15016, dep.getSize());
+        assertEquals(Collections.emptyList(), dep.getDependencies());
+        assertFalse(dep.isCompressed());
+    }
+}
@@ -0,0 +1,223 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+public class NativeLibJarsTest {
+    private static final String LIBRARY = "org/romantics/jni/native/Linux/x86_64/libmath.so";
+
+    /** Resolves nested: URLs, which only Spring Boot can open. */
+    private static final URLStreamHandler NESTED_HANDLER =
+            new URLStreamHandler() {
+                @Override
+                protected URLConnection openConnection(URL url) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void closeJars() {
+        NativeLibJars.closeAll();
+    }
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        byte[] library = library(1);
+        File jar = folder.newFile("plain.jar");
+        Files.write(
+                jar.toPath(),
+                jar(
+                        entry(LIBRARY, library, ZipEntry.DEFLATED),
+                        entry("stored/" + LIBRARY, library, ZipEntry.STORED)));
+
+        assertArrayEquals(library, read(url(jar, LIBRARY)));
+        assertArrayEquals(library, read(url(jar, "stored/" + LIBRARY)));
+    }
+
+    @Test
+    public void readsFoldersOfFatJar() throws IOException {
+        byte[] library = library(2);
+        File fatJar = folder.newFile("fat.jar");
+        Files.write(
+                fatJar.toPath(),
+                jar(entry("BOOT-INF/classes/" + LIBRARY, library, ZipEntry.DEFLATED)));
+
+        assertArrayEquals(library, read(url(fatJar, "BOOT-INF/classes!/" + LIBRARY)));
+        assertArrayEquals(
+                library, read(nestedUrl(fatJar, "BOOT-INF/classes/", LIBRARY)));
+    }
+
+    @Test
+    public void readsNestedJars() throws IOException {
+        byte[] library = library(3);
+        byte[] innerJar =
+                jar(
+                        entry(LIBRARY, library, ZipEntry.DEFLATED),
+                        entry("stored/" + LIBRARY, library, ZipEntry.STORED));
+        File fatJar = folder.newFile("fat.jar");
+        Files.write(
+                fatJar.toPath(),
+                jar(
+                        entry("BOOT-INF/classes/app.properties", new byte[10], ZipEntry.DEFLATED),
+                        entry("BOOT-INF/lib/inner.jar", innerJar, ZipEntry.STORED)));
+
+        assertArrayEquals(library, read(url(fatJar, "BOOT-INF/lib/inner.jar!/" + LIBRARY)));
+        assertArrayEquals(
+                library, read(url(fatJar, "BOOT-INF/lib/inner.jar!/stored/" + LIBRARY)));
+        assertArrayEquals(
+                library, read(nestedUrl(fatJar, "BOOT-INF/lib/inner.jar", LIBRARY)));
+    }
+
+    @Test
+    public void leavesOtherJarsToTheUrlConnection() throws IOException {
+        byte[] innerJar = jar(entry(LIBRARY, library(4), ZipEntry.DEFLATED));
+        File fatJar = folder.newFile("fat.jar");
+        Files.write(
+                fatJar.toPath(), jar(entry("BOOT-INF/lib/inner.jar", innerJar, ZipEntry.DEFLATED)));
+
+        assertNull(NativeLibJars.open(new URL(url(fatJar, "missing.so"))));
+        assertNull(NativeLibJars.open(new URL(url(fatJar, "BOOT-INF/lib/inner.jar!/" + LIBRARY))));
+        assertNull(NativeLibJars.open(fatJar.toURI().toURL()));
+    }
+
+    @Test
+    public void rejectsCorruptedEntries() throws IOException {
+        byte[] library = library(5);
+        byte[] plainJar = jar(entry(LIBRARY, library, ZipEntry.STORED));
+        byte[] innerJar = jar(entry(LIBRARY, library, ZipEntry.STORED));
+        corrupt(plainJar, library);
+        corrupt(innerJar, library);
+        File jar = folder.newFile("plain.jar");
+        Files.write(jar.toPath(), plainJar);
+        File fatJar = folder.newFile("fat.jar");
+        Files.write(
+                fatJar.toPath(), jar(entry("BOOT-INF/lib/inner.jar", innerJar, ZipEntry.STORED)));
+
+        assertCorrupted(url(jar, LIBRARY));
+        assertCorrupted(url(fatJar, "BOOT-INF/lib/inner.jar!/" + LIBRARY));
+    }
+
+    @Test
+    public void readsJarsAgainAfterClosing() throws IOException {
+        byte[] library = library(6);
+        File jar = folder.newFile("plain.jar");
+        Files.write(jar.toPath(), jar(entry(LIBRARY, library, ZipEntry.DEFLATED)));
+
+        assertArrayEquals(library, read(url(jar, LIBRARY)));
+        NativeLibJars.closeAll();
+        assertArrayEquals(library, read(url(jar, LIBRARY)));
+    }
+
+    private static void assertCorrupted(String url) throws IOException {
+        try {
+            read(url);
+            fail("Read a corrupted entry of " + url);
+        } catch (ZipException expected) {
+            // checked against the CRC-32 of the central directory
+        }
+    }
+
+    /** @return Contents that compress, like a real library. */
+    private static byte[] library(int seed) {
+        byte[] library = new byte[64 * 1024];
+        for (int i = 0; i < library.length; i++) {
+            library[i] = (byte) ((i % 251) * seed);
+        }
+        return library;
+    }
+
+    private static ZipEntry entry(String name, byte[] contents, int method) {
+        ZipEntry entry = new Entry(name, contents);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            entry.setSize(contents.length);
+            entry.setCrc(crc.getValue());
+        }
+        return entry;
+    }
+
+    private static byte[] jar(ZipEntry... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(bytes)) {
+            for (ZipEntry entry : entries) {
+                out.putNextEntry(entry);
+                out.write(((Entry) entry).contents);
+                out.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Flips a byte in the middle of the stored contents. */
+    private static void corrupt(byte[] jar, byte[] contents) {
+        for (int i = 0; i + contents.length <= jar.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < 16 && found; j++) {
+                found = jar[i + j] == contents[j];
+            }
+            if (found) {
+                jar[i + contents.length / 2] ^= 0x55;
+                return;
+            }
+        }
+        throw new AssertionError("Contents not stored");
+    }
+
+    private static String url(File jar, String entry) throws IOException {
+        return "jar:" + jar.toURI().toURL() + "!/" + entry;
+    }
+
+    private static URL nestedUrl(File fatJar, String nestedName, String entry)
+            throws IOException {
+        return new URL(
+                null,
+                "jar:nested:" + fatJar.getAbsolutePath() + "/!" + nestedName + "!/" + entry,
+                NESTED_HANDLER);
+    }
+
+    private static byte[] read(String url) throws IOException {
+        return read(new URL(url));
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        try (InputStream in = NativeLibJars.open(url)) {
+            if (in == null) {
+                throw new AssertionError("Not read directly: " + url);
+            }
+            return NativeLibFiles.readFully(in);
+        }
+    }
+
+    /** An entry together with its contents. */
+    private static final class Entry extends ZipEntry {
+        final byte[] contents;
+
+        Entry(String name, byte[] contents) {
+            super(name);
+            this.contents = contents;
+        }
+    }
+}
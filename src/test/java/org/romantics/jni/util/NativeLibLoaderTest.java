@@ -0,0 +1,181 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class NativeLibLoaderTest {
+    private static final String DIGEST =
+            "f3b5263022577e4f658771f9ffb867f4de0f179f5d59804217c2d76c3e7c8289";
+    private static final int EM_X86_64 = 62;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ordersDependenciesFirst() {
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        dependencies.put("app", Arrays.asList("math", "dep"));
+        dependencies.put("math", Collections.singletonList("dep"));
+        dependencies.put("dep", Collections.<String>emptyList());
+        dependencies.put("other", Collections.<String>emptyList());
+
+        assertEquals(
+                Arrays.asList("dep", "math", "app", "other"),
+                NativeLibLoader.topologicalOrder(dependencies));
+    }
+
+    @Test
+    public void breaksCycles() {
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        dependencies.put("app", Collections.singletonList("math"));
+        dependencies.put("math", Arrays.asList("dep", "math"));
+        dependencies.put("dep", Collections.singletonList("app"));
+
+        assertEquals(
+                Arrays.asList("dep", "math", "app"),
+                NativeLibLoader.topologicalOrder(dependencies));
+    }
+
+    @Test
+    public void ordersMissingDependenciesFirst() {
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        dependencies.put("app", Arrays.asList("missing", "math"));
+        dependencies.put("math", Collections.<String>emptyList());
+
+        assertEquals(
+                Arrays.asList("missing", "math", "app"),
+                NativeLibLoader.topologicalOrder(dependencies));
+    }
+
+    @Test
+    public void readsBundledDependenciesOfElfFiles() throws Exception {
+        Path classes = folder.newFolder("classes").toPath();
+        bundle(classes, "dep");
+        Path libFile = folder.getRoot().toPath().resolve(name("app"));
+        ByteBuffer image =
+                ElfInfoTest.elf(
+                        true,
+                        ByteOrder.LITTLE_ENDIAN,
+                        EM_X86_64,
+                        null,
+                        name("dep"),
+                        "libc.so.6",
+                        name("missing"),
+                        name("dep"));
+        Files.write(libFile, Arrays.copyOf(image.array(), image.limit()));
+
+        Class<?> loader = isolatedCopy(classes);
+        declare(loader, "app", "declared");
+
+        // system and missing libraries are skipped, declared ones kept
+        assertEquals(
+                Arrays.asList("declared", "dep"), bundledDependencies(loader, "app", libFile));
+        assertEquals(
+                Collections.emptyList(),
+                bundledDependencies(loader, "dep", classes.resolve("none")));
+    }
+
+    @Test
+    public void readsBundledDependenciesFromTheIndex() throws Exception {
+        Path classes = folder.newFolder("classes").toPath();
+        bundle(classes, "dep");
+        String folderPath = OSInfo.getNativeLibFolderPathForCurrentOS();
+        Properties index = new Properties();
+        index.setProperty(folderPath + "/" + name("app") + ".sha256", DIGEST);
+        index.setProperty(
+                folderPath + "/" + name("app") + ".deps",
+                name("missing") + "," + name("dep") + ",libc.so.6");
+        Path indexFile = classes.resolve(NativeLibIndex.INDEX_RESOURCE);
+        Files.createDirectories(indexFile.getParent());
+        try (OutputStream out = Files.newOutputStream(indexFile)) {
+            index.store(out, null);
+        }
+
+        Class<?> loader = isolatedCopy(classes);
+
+        assertEquals(
+                Collections.singletonList("dep"), bundledDependencies(loader, "app", null));
+    }
+
+    private static String name(String nativeLibBaseName) {
+        return LibraryLoaderUtil.getNativeLibName(nativeLibBaseName);
+    }
+
+    /** Adds a library to the resources of the current OS in the given class path folder. */
+    private static void bundle(Path classes, String nativeLibBaseName) throws IOException {
+        Path libFile =
+                classes.resolve(
+                        LibraryLoaderUtil.getNativeLibResourcePath().substring(1)
+                                + "/"
+                                + name(nativeLibBaseName));
+        Files.createDirectories(libFile.getParent());
+        Files.write(libFile, new byte[] {0x7f, 'E', 'L', 'F'});
+    }
+
+    /**
+     * @return NativeLibLoader as defined by another class loader, which finds the given folder
+     *     first on its class path and has its own index and declared libraries.
+     */
+    private static Class<?> isolatedCopy(Path classes) throws Exception {
+        List<URL> urls = new ArrayList<>();
+        urls.add(classes.toUri().toURL());
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(Paths.get(entry).toUri().toURL());
+        }
+        URLClassLoader classLoader = new URLClassLoader(urls.toArray(new URL[0]), null);
+        return Class.forName(NativeLibLoader.class.getName(), true, classLoader);
+    }
+
+    /** Declares a library with dependencies, as {@link NativeLibLoader#preloadAll()} does. */
+    @SuppressWarnings("unchecked")
+    private static void declare(Class<?> loader, String nativeLibBaseName, String... deps)
+            throws Exception {
+        Class<?> descriptorClass =
+                Class.forName(
+                        NativeLibraryDescriptor.class.getName(), true, loader.getClassLoader());
+        Constructor<?> constructor =
+                descriptorClass.getConstructor(String.class, int.class, List.class, List.class);
+        Field declared = loader.getDeclaredField("declared");
+        declared.setAccessible(true);
+        ((Map<String, Object>) declared.get(null))
+                .put(
+                        nativeLibBaseName,
+                        constructor.newInstance(
+                                nativeLibBaseName,
+                                0,
+                                Arrays.asList(deps),
+                                Collections.<String>emptyList()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> bundledDependencies(
+            Class<?> loader, String nativeLibBaseName, Path libFile) throws Exception {
+        Method method =
+                loader.getDeclaredMethod("getBundledDependencies", String.class, Path.class);
+        method.setAccessible(true);
+        return (List<String>) method.invoke(null, nativeLibBaseName, libFile);
+    }
+}
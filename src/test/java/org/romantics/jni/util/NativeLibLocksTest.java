@@ -0,0 +1,347 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the lock protocol of {@link NativeLibLocks} against a second JVM, since file locks only
+ * exclude other processes.
+ */
+public class NativeLibLocksTest {
+    private static final String LIBRARY = "libmath.so";
+    private static final String EXTRACT_LOCK = ".extract" + NativeLibLocks.LOCK_EXT;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void release() {
+        NativeLibLocks.releaseLeases();
+    }
+
+    @Test(timeout = 30000)
+    public void evictSkipsEntriesLeasedByAnotherJvm() throws Exception {
+        Path libFile = library();
+
+        try (OtherJvm other = new OtherJvm()) {
+            other.call("lease", libFile);
+
+            assertFalse(NativeLibLocks.evict(libFile.getParent()));
+            assertTrue(Files.exists(libFile));
+        }
+        // the lease ends with the process
+
+        assertTrue(NativeLibLocks.evict(libFile.getParent()));
+        assertFalse(Files.exists(libFile.getParent()));
+    }
+
+    @Test(timeout = 30000)
+    public void evictSkipsEntriesLeasedByThisJvm() throws Exception {
+        Path libFile = library();
+        NativeLibLocks.acquireLease(libFile);
+        assertTrue(NativeLibLocks.hasLease(libFile));
+
+        // the lock overlaps the lease of this JVM, which must survive the attempt
+        assertFalse(NativeLibLocks.evict(libFile.getParent()));
+        assertTrue(Files.exists(libFile));
+        try (OtherJvm other = new OtherJvm()) {
+            assertEquals("false", other.call("evict", libFile.getParent()));
+        }
+
+        NativeLibLocks.releaseLease(libFile);
+        assertFalse(NativeLibLocks.hasLease(libFile));
+        assertTrue(NativeLibLocks.evict(libFile.getParent()));
+        assertFalse(Files.exists(libFile.getParent()));
+    }
+
+    @Test(timeout = 30000)
+    public void evictSkipsEntriesBeingExtracted() throws Exception {
+        Path libFile = library();
+
+        try (OtherJvm other = new OtherJvm()) {
+            try (Closeable extracting = NativeLibLocks.lockExtraction(libFile.getParent())) {
+                assertEquals("false", other.call("evict", libFile.getParent()));
+                assertTrue(Files.exists(libFile));
+            }
+            assertEquals("true", other.call("evict", libFile.getParent()));
+        }
+        assertFalse(Files.exists(libFile.getParent()));
+    }
+
+    @Test(timeout = 30000)
+    public void leaseOfAnotherClassLoaderProtectsEntry() throws Exception {
+        Path libFile = library();
+        Class<?> otherCopy = isolatedCopy();
+        invoke(otherCopy, "acquireLease", libFile);
+
+        // the lock overlaps the lease of the other copy, which protects the library for this JVM
+        NativeLibLocks.acquireLease(libFile);
+        assertFalse(NativeLibLocks.hasLease(libFile));
+        try (OtherJvm other = new OtherJvm()) {
+            assertEquals("false", other.call("evict", libFile.getParent()));
+            assertTrue(Files.exists(libFile));
+
+            invoke(otherCopy, "releaseLeases");
+            assertEquals("true", other.call("evict", libFile.getParent()));
+        }
+        assertFalse(Files.exists(libFile.getParent()));
+    }
+
+    @Test(timeout = 30000)
+    public void extractionRetriesLockFilesMarkedByEviction() throws Exception {
+        Path entryFolder = library().getParent();
+        Path lckFile = entryFolder.resolve(EXTRACT_LOCK);
+
+        try (OtherJvm other = new OtherJvm()) {
+            other.call("lock", lckFile);
+            CompletableFuture<Long> locking =
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try (Closeable extracting =
+                                        NativeLibLocks.lockExtraction(entryFolder)) {
+                                    return Files.size(lckFile);
+                                } catch (IOException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            });
+            awaitOpened(lckFile);
+            other.call("evict", lckFile);
+
+            // locked a new lock file after finding the old one marked
+            assertEquals(0, (long) locking.get(10, TimeUnit.SECONDS));
+        }
+        assertTrue(Files.exists(lckFile));
+    }
+
+    @Test(timeout = 30000)
+    public void extractionWaitsForAnotherClassLoader() throws Exception {
+        Path entryFolder = library().getParent();
+        Class<?> otherCopy = isolatedCopy();
+        Closeable extracting = (Closeable) invoke(otherCopy, "lockExtraction", entryFolder);
+
+        CompletableFuture<Void> locked = new CompletableFuture<>();
+        CountDownLatch extracted = new CountDownLatch(1);
+        CompletableFuture<Void> extraction =
+                CompletableFuture.runAsync(
+                        () -> {
+                            try (Closeable lock = NativeLibLocks.lockExtraction(entryFolder)) {
+                                locked.complete(null);
+                                extracted.await();
+                            } catch (IOException | InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        });
+        try (OtherJvm other = new OtherJvm()) {
+            Thread.sleep(100);
+            assertFalse(locked.isDone());
+            // waiting must not release the lock of the other class loader
+            assertEquals("false", other.call("evict", entryFolder));
+
+            extracting.close();
+            locked.get(10, TimeUnit.SECONDS);
+            assertEquals("false", other.call("evict", entryFolder));
+            extracted.countDown();
+            extraction.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void leaseRetriesLockFilesMarkedByEviction() throws Exception {
+        Path libFile = library();
+        Path lckFile = NativeLibLocks.leaseFile(libFile);
+
+        try (OtherJvm other = new OtherJvm()) {
+            other.call("lock", lckFile);
+            CompletableFuture<Void> leasing =
+                    CompletableFuture.runAsync(
+                            () -> {
+                                try {
+                                    NativeLibLocks.acquireLease(libFile);
+                                } catch (IOException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            });
+            awaitOpened(lckFile);
+            other.call("evict", lckFile);
+            leasing.get(10, TimeUnit.SECONDS);
+        }
+
+        assertTrue(NativeLibLocks.hasLease(libFile));
+        assertTrue(Files.exists(lckFile));
+        assertEquals(0, Files.size(lckFile));
+    }
+
+    private Path library() throws IOException {
+        Path libFile = folder.getRoot().toPath().toRealPath().resolve("0123abcd").resolve(LIBRARY);
+        Files.createDirectories(libFile.getParent());
+        Files.write(libFile, new byte[] {0x7f, 'E', 'L', 'F'});
+        return libFile;
+    }
+
+    /** Waits until a thread of this JVM opened the file, so that it is about to lock it. */
+    private static void awaitOpened(Path file) throws Exception {
+        Path fds = Paths.get("/proc/self/fd");
+        assumeTrue("Needs /proc to see open files", Files.isDirectory(fds));
+        while (true) {
+            try (Stream<Path> links = Files.list(fds)) {
+                if (links.anyMatch(link -> isLinkTo(link, file))) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean isLinkTo(Path link, Path file) {
+        try {
+            return Files.readSymbolicLink(link).equals(file);
+        } catch (IOException e) {
+            // closed in the meantime
+            return false;
+        }
+    }
+
+    /** @return NativeLibLocks as defined by another class loader, with its own static state. */
+    private static Class<?> isolatedCopy() throws Exception {
+        List<URL> urls = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(Paths.get(entry).toUri().toURL());
+        }
+        URLClassLoader classLoader = new URLClassLoader(urls.toArray(new URL[0]), null);
+        return Class.forName(NativeLibLocks.class.getName(), true, classLoader);
+    }
+
+    private static Object invoke(Class<?> copy, String name, Path... args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = Path.class;
+        }
+        Method method = copy.getDeclaredMethod(name, types);
+        method.setAccessible(true);
+        return method.invoke(null, (Object[]) args);
+    }
+
+    /** A second JVM running {@link LockHolder}, which exits once closed. */
+    private static final class OtherJvm implements Closeable {
+        private final Process process;
+        private final PrintStream commands;
+        private final BufferedReader replies;
+
+        OtherJvm() throws IOException {
+            Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+            process =
+                    new ProcessBuilder(
+                                    java.toString(),
+                                    "-cp",
+                                    System.getProperty("java.class.path"),
+                                    LockHolder.class.getName())
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+            commands = new PrintStream(process.getOutputStream(), true, "UTF-8");
+            replies =
+                    new BufferedReader(
+                            new InputStreamReader(
+                                    process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        String call(String command, Path path) throws IOException {
+            commands.println(command + " " + path);
+            String reply = replies.readLine();
+            if (reply == null || reply.startsWith("error")) {
+                throw new IOException(command + " " + path + " failed: " + reply);
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() throws IOException {
+            commands.close();
+            try {
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replies.close();
+        }
+    }
+
+    /**
+     * Takes leases and locks as told on stdin, one "command path" per line, and answers every
+     * command with one line.
+     */
+    public static final class LockHolder {
+        public static void main(String[] args) throws IOException {
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            FileChannel locked = null;
+            for (String line; (line = in.readLine()) != null; ) {
+                String[] command = line.split(" ", 2);
+                Path path = Paths.get(command[1]);
+                try {
+                    switch (command[0]) {
+                        case "lease":
+                            NativeLibLocks.acquireLease(path);
+                            System.out.println("ok");
+                            break;
+                        case "lock":
+                            locked =
+                                    FileChannel.open(
+                                            path,
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE);
+                            locked.lock();
+                            System.out.println("ok");
+                            break;
+                        case "evict":
+                            if (locked == null) {
+                                System.out.println(NativeLibLocks.evict(path));
+                                break;
+                            }
+                            // what NativeLibLocks.evict does to each lock file
+                            locked.write(ByteBuffer.wrap(new byte[] {1}), 0);
+                            Files.delete(path);
+                            locked.close();
+                            locked = null;
+                            System.out.println("ok");
+                            break;
+                        default:
+                            System.out.println("error: unknown command " + line);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("error: " + e);
+                }
+            }
+        }
+    }
+}
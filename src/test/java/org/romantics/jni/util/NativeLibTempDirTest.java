@@ -0,0 +1,76 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class NativeLibTempDirTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesMountInfoLines() {
+        NativeLibTempDir.Mount shm =
+                NativeLibTempDir.Mount.parse(
+                        "26 25 0:24 / /dev/shm rw,nosuid,nodev,noexec shared:4 - tmpfs tmpfs rw");
+        assertEquals(Paths.get("/dev/shm"), shm.mountPoint);
+        assertEquals("tmpfs", shm.fsType);
+        assertTrue(shm.noexec);
+
+        // no optional fields before the separator
+        NativeLibTempDir.Mount root =
+                NativeLibTempDir.Mount.parse("22 1 8:1 / / rw,relatime - ext4 /dev/sda1 rw");
+        assertEquals(Paths.get("/"), root.mountPoint);
+        assertEquals("ext4", root.fsType);
+        assertFalse(root.noexec);
+    }
+
+    @Test
+    public void unescapesMountPoints() {
+        NativeLibTempDir.Mount mount =
+                NativeLibTempDir.Mount.parse(
+                        "40 22 0:35 / /mnt/my\\040disk\\134x rw - vfat /dev/sdb1 rw");
+        assertEquals(Paths.get("/mnt/my disk\\x"), mount.mountPoint);
+
+        assertEquals("a\tb\nc", NativeLibTempDir.Mount.unescape("a\\011b\\012c"));
+        // not an octal escape, or cut short
+        assertEquals("a\\09b", NativeLibTempDir.Mount.unescape("a\\09b"));
+        assertEquals("a\\04", NativeLibTempDir.Mount.unescape("a\\04"));
+    }
+
+    @Test
+    public void rejectsMalformedLines() {
+        assertNull(NativeLibTempDir.Mount.parse(""));
+        assertNull(NativeLibTempDir.Mount.parse("26 25 0:24 / /dev/shm rw tmpfs tmpfs rw"));
+        assertNull(NativeLibTempDir.Mount.parse("26 25 0:24 / - tmpfs"));
+        assertNull(NativeLibTempDir.Mount.parse("26 25 0:24 / /dev/shm rw -"));
+    }
+
+    @Test
+    public void findsTheDeepestMount() throws IOException {
+        Path root = folder.getRoot().toPath().toRealPath();
+        File nested = folder.newFolder("nested");
+        NativeLibTempDir.Mount slash = new NativeLibTempDir.Mount(Paths.get("/"), "ext4", false);
+        NativeLibTempDir.Mount tmp = new NativeLibTempDir.Mount(root, "tmpfs", false);
+        NativeLibTempDir.Mount stacked = new NativeLibTempDir.Mount(root, "tmpfs", true);
+
+        assertSame(tmp, NativeLibTempDir.Mount.of(nested.toPath(), Arrays.asList(slash, tmp)));
+        assertSame(tmp, NativeLibTempDir.Mount.of(nested.toPath(), Arrays.asList(tmp, slash)));
+        // the last one mounted on the same point hides the others
+        assertSame(
+                stacked,
+                NativeLibTempDir.Mount.of(nested.toPath(), Arrays.asList(slash, tmp, stacked)));
+        assertNull(NativeLibTempDir.Mount.of(root.resolve("missing"), Arrays.asList(slash)));
+    }
+}
@@ -0,0 +1,135 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+public class NativeLibraryProvidersTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsDescriptorFiles() throws IOException {
+        Path jar =
+                jar(
+                        "alpha.priority = 5",
+                        "alpha.dependencies = dep1, dep2 ,,",
+                        "alpha.variants=x86-64-v3",
+                        "beta.variants=x86-64-v2,x86-64-v3",
+                        "gamma.priority=high",
+                        "ignored=1",
+                        "delta.unknown=1");
+
+        Map<String, NativeLibraryDescriptor> declared = discover(jar);
+
+        assertEquals(Arrays.asList("alpha", "beta", "gamma"), new ArrayList<>(declared.keySet()));
+        NativeLibraryDescriptor alpha = declared.get("alpha");
+        assertEquals(5, alpha.getPriority());
+        assertEquals(Arrays.asList("dep1", "dep2"), alpha.getDependencies());
+        assertEquals(Collections.singletonList("x86-64-v3"), alpha.getVariants());
+        NativeLibraryDescriptor beta = declared.get("beta");
+        assertEquals(0, beta.getPriority());
+        assertEquals(Collections.emptyList(), beta.getDependencies());
+        assertEquals(Arrays.asList("x86-64-v2", "x86-64-v3"), beta.getVariants());
+        // an unreadable priority still declares the library
+        assertEquals(0, declared.get("gamma").getPriority());
+    }
+
+    @Test
+    public void mergesDeclarationsOfTheSameLibrary() throws IOException {
+        Path first =
+                jar(
+                        "alpha.priority=1",
+                        "alpha.dependencies=dep1",
+                        "alpha.variants=x86-64-v3",
+                        "beta.variants=x86-64-v3");
+        Path second =
+                jar(
+                        "alpha.priority=7",
+                        "alpha.dependencies=dep2,dep1",
+                        "alpha.variants=x86-64-v2",
+                        "beta.priority=2");
+
+        Map<String, NativeLibraryDescriptor> declared = discover(first, second);
+
+        NativeLibraryDescriptor alpha = declared.get("alpha");
+        assertEquals(7, alpha.getPriority());
+        assertEquals(Arrays.asList("dep1", "dep2"), alpha.getDependencies());
+        assertEquals(Arrays.asList("x86-64-v3", "x86-64-v2"), alpha.getVariants());
+        // a declaration without variants looks up all of them
+        NativeLibraryDescriptor beta = declared.get("beta");
+        assertEquals(2, beta.getPriority());
+        assertEquals(Collections.emptyList(), beta.getVariants());
+    }
+
+    @Test
+    public void mergesProvidersWithDescriptorFiles() throws IOException {
+        Path jar = jar("alpha.dependencies=dep1", "beta.priority=3");
+        Path services = folder.newFolder().toPath();
+        Path service =
+                services.resolve("META-INF/services/" + NativeLibraryProvider.class.getName());
+        Files.createDirectories(service.getParent());
+        Files.write(service, TestProvider.class.getName().getBytes(StandardCharsets.UTF_8));
+
+        Map<String, NativeLibraryDescriptor> declared = discover(services, jar);
+
+        // highest priority first, then by name
+        assertEquals(Arrays.asList("alpha", "zeta", "beta"), new ArrayList<>(declared.keySet()));
+        NativeLibraryDescriptor alpha = declared.get("alpha");
+        assertEquals(4, alpha.getPriority());
+        assertEquals(Arrays.asList("dep0", "dep1"), alpha.getDependencies());
+        assertEquals(Collections.emptyList(), declared.get("zeta").getDependencies());
+    }
+
+    /** Declares alpha and zeta, both with priority 4. */
+    public static final class TestProvider implements NativeLibraryProvider {
+        @Override
+        public Collection<NativeLibraryDescriptor> getNativeLibraries() {
+            return Arrays.asList(
+                    new NativeLibraryDescriptor(
+                            "zeta",
+                            4,
+                            Collections.<String>emptyList(),
+                            Collections.<String>emptyList()),
+                    new NativeLibraryDescriptor(
+                            "alpha",
+                            4,
+                            Collections.singletonList("dep0"),
+                            Collections.<String>emptyList()));
+        }
+    }
+
+    /** @return A class path folder holding a descriptor file with the given lines. */
+    private Path jar(String... lines) throws IOException {
+        Path classes = folder.newFolder().toPath();
+        Path descriptor = classes.resolve(NativeLibraryProviders.DESCRIPTOR_RESOURCE);
+        Files.createDirectories(descriptor.getParent());
+        Files.write(descriptor, Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+        return classes;
+    }
+
+    private static Map<String, NativeLibraryDescriptor> discover(Path... classPath)
+            throws IOException {
+        URL[] urls = new URL[classPath.length];
+        for (int i = 0; i < classPath.length; i++) {
+            urls[i] = classPath[i].toUri().toURL();
+        }
+        try (URLClassLoader classLoader =
+                new URLClassLoader(urls, NativeLibraryProvidersTest.class.getClassLoader())) {
+            return NativeLibraryProviders.discover(classLoader);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class OSInfoTest {
+    private static final String[] V2 = {
+        "cx16", "lahf_lm", "popcnt", "pni", "sse4_1", "sse4_2", "ssse3"
+    };
+    private static final String[] V3 = {
+        "avx", "avx2", "bmi1", "bmi2", "f16c", "fma", "abm", "movbe", "xsave"
+    };
+    private static final String[] V4 = {"avx512f", "avx512bw", "avx512cd", "avx512dq", "avx512vl"};
+
+    @Test
+    public void picksEveryLevelTheCpuReaches() {
+        assertEquals(
+                Arrays.asList("x86-64-v4", "x86-64-v3", "x86-64-v2"),
+                OSInfo.supportedLevels(OSInfo.X86_64_LEVELS, flags(V2, V3, V4)));
+        assertEquals(
+                Arrays.asList("x86-64-v3", "x86-64-v2"),
+                OSInfo.supportedLevels(OSInfo.X86_64_LEVELS, flags(V2, V3)));
+        assertEquals(
+                Collections.emptyList(),
+                OSInfo.supportedLevels(OSInfo.X86_64_LEVELS, flags()));
+    }
+
+    @Test
+    public void levelsIncludeTheLowerLevels() {
+        // AVX-512 without a lower level's flag, e.g. a hypervisor hiding lahf_lm
+        Set<String> features = flags(V2, V3, V4);
+        features.remove("lahf_lm");
+        assertEquals(
+                Collections.emptyList(), OSInfo.supportedLevels(OSInfo.X86_64_LEVELS, features));
+
+        features = flags(V2, V4);
+        assertEquals(
+                Collections.singletonList("x86-64-v2"),
+                OSInfo.supportedLevels(OSInfo.X86_64_LEVELS, features));
+    }
+
+    private static Set<String> flags(String[]... levels) {
+        Set<String> flags = new HashSet<>(Arrays.asList("fpu", "sse", "sse2"));
+        for (String[] level : levels) {
+            flags.addAll(Arrays.asList(level));
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,156 @@
+package org.romantics.jni.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Leases and swaps versions without loading a library, which the lease counting does not need. */
+public class SwappableNativeLibraryTest {
+    private final SwappableNativeLibrary<Runnable> library =
+            new SwappableNativeLibrary<>("math", Runnable.class, "com.example.NativeMath");
+
+    @Test
+    public void leasesTheCurrentVersion() {
+        Runnable binding = () -> {};
+        library.install(new SwappableNativeLibrary.Version<>(1, binding));
+
+        try (SwappableNativeLibrary.Lease<Runnable> lease = library.acquire()) {
+            assertEquals(1, lease.getVersion());
+            assertSame(binding, lease.get());
+        }
+        assertEquals(1, library.getVersion());
+    }
+
+    @Test
+    public void swapDrainsThePreviousVersion() {
+        Runnable first = () -> {};
+        Runnable second = () -> {};
+        SwappableNativeLibrary.Version<Runnable> previous =
+                new SwappableNativeLibrary.Version<>(1, first);
+        library.install(previous);
+        SwappableNativeLibrary.Lease<Runnable> running = library.acquire();
+        SwappableNativeLibrary.Lease<Runnable> another = library.acquire();
+
+        CompletableFuture<Void> drained =
+                library.install(new SwappableNativeLibrary.Version<>(2, second));
+
+        // new calls go to the new version while the running ones keep theirs
+        try (SwappableNativeLibrary.Lease<Runnable> lease = library.acquire()) {
+            assertEquals(2, lease.getVersion());
+            assertSame(second, lease.get());
+        }
+        assertSame(first, running.get());
+        running.close();
+        // closing twice releases once
+        running.close();
+        assertFalse(drained.isDone());
+        assertSame(first, previous.binding);
+
+        another.close();
+        assertTrue(drained.isDone());
+        assertNull(previous.binding);
+        try {
+            running.get();
+            fail("Used a closed lease");
+        } catch (IllegalStateException expected) {
+            // the binding may be gone
+        }
+    }
+
+    @Test
+    public void swapWithoutCallsDrainsAtOnce() {
+        SwappableNativeLibrary.Version<Runnable> previous =
+                new SwappableNativeLibrary.Version<>(1, () -> {});
+        library.install(previous);
+        library.acquire().close();
+
+        assertTrue(library.install(new SwappableNativeLibrary.Version<>(2, () -> {})).isDone());
+        assertNull(previous.binding);
+        assertEquals(2, library.getVersion());
+    }
+
+    @Test
+    public void closeRefusesLeasesAndDrains() {
+        SwappableNativeLibrary.Version<Runnable> version =
+                new SwappableNativeLibrary.Version<>(1, () -> {});
+        library.install(version);
+        SwappableNativeLibrary.Lease<Runnable> running = library.acquire();
+
+        library.close();
+        assertEquals(0, library.getVersion());
+        try {
+            library.acquire();
+            fail("Leased a closed library");
+        } catch (IllegalStateException expected) {
+            // closed
+        }
+        assertNotNull(version.binding);
+        running.close();
+        assertNull(version.binding);
+    }
+
+    @Test(timeout = 30000)
+    public void swapsWhileCalling() throws Exception {
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicBoolean swapping = new AtomicBoolean(true);
+        CountDownLatch calling = new CountDownLatch(threads);
+        List<Future<Integer>> callers = new ArrayList<>();
+        try {
+            // the calls yield, so that swaps and closing leases interleave even on one CPU
+            library.install(new SwappableNativeLibrary.Version<>(1, Thread::yield));
+            for (int i = 0; i < threads; i++) {
+                callers.add(
+                        executor.submit(
+                                () -> {
+                                    int calls = 0;
+                                    while (swapping.get()) {
+                                        try (SwappableNativeLibrary.Lease<Runnable> lease =
+                                                library.acquire()) {
+                                            // throws if a drained version was leased
+                                            lease.get().run();
+                                        }
+                                        if (++calls == 1) {
+                                            calling.countDown();
+                                        }
+                                    }
+                                    return calls;
+                                }));
+            }
+
+            calling.await();
+            List<CompletableFuture<Void>> drained = new ArrayList<>();
+            for (int number = 2; number <= 1000; number++) {
+                SwappableNativeLibrary.Version<Runnable> next =
+                        new SwappableNativeLibrary.Version<>(number, Thread::yield);
+                drained.add(library.install(next));
+            }
+            swapping.set(false);
+            for (Future<Integer> caller : callers) {
+                assertTrue(caller.get() > 0);
+            }
+            for (CompletableFuture<Void> version : drained) {
+                version.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(1000, library.getVersion());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}